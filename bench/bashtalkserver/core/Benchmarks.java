@@ -0,0 +1,632 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Micro-benchmarks for the server's hot paths. Each benchmark is warmed up, then timed over several fixed-length
+ * iterations; the score is the mean time per operation and the error is its standard deviation across iterations.
+ * 
+ * Results are printed as CSV and can be saved and compared against an earlier run, so a slower release shows up as a
+ * regression instead of a hunch:
+ * 
+ * java -cp out bashtalkserver.core.Benchmarks --out=bench.csv --baseline=last-release.csv
+ * 
+ * Fan-out and /users run through the real chat path on a server whose clients are in-memory sinks, so they measure
+ * the parsing, caching, encoding and queueing a chat line costs, without any network I/O.
+ * 
+ * @version 1.0.0
+ */
+public class Benchmarks {
+	
+	private static final String USAGE = "Usage: java bashtalkserver.core.Benchmarks [options]" + "\n\t--warmup=<iterations>\tUntimed iterations first (default 5)" + "\n\t--iterations=<count>\tTimed iterations (default 10)" + "\n\t--time=<millis>\t\tLength of each iteration (default 200)" + "\n\t--filter=<text>\t\tOnly run benchmarks whose name contains the text" + "\n\t--out=<file>\t\tAlso save the results to a CSV file" + "\n\t--baseline=<file>\tCompare against results saved earlier" + "\n\t--threshold=<percent>\tSlowdown that counts as a regression (default 10)";
+	
+	private static final String HEADER = "benchmark,size,iterations,score,error,unit";
+	
+	// Results of every operation are folded in here so the JIT cannot discard the work
+	private static volatile long sink;
+	
+	private int warmup = 5;
+	private int iterations = 10;
+	private long iterationMillis = 200;
+	private String filter = "";
+	private String outFile;
+	private String baselineFile;
+	private double threshold = 10;
+	
+	// Where results go; the server's own logging is silenced while benchmarks run
+	private PrintStream report;
+	
+	/**
+	 * One operation to time, with the fixture it runs against.
+	 */
+	private abstract static class Benchmark {
+		
+		final String name;
+		final int size;
+		
+		/**
+		 * @param name
+		 *            - Name of the benchmark
+		 * @param size
+		 *            - Number of clients or messages in the fixture, or 0 if it has none
+		 */
+		Benchmark(String name, int size)
+		{
+			this.name = name;
+			this.size = size;
+		}
+		
+		/**
+		 * Build the fixture. Not timed.
+		 */
+		void setUp()
+		{
+		}
+		
+		/**
+		 * Run the operation once.
+		 * 
+		 * @param i
+		 *            - Number of the operation, for benchmarks that vary their input
+		 * @return Any value derived from the result
+		 */
+		abstract long run(long i);
+		
+		/**
+		 * Count the lines flood control has dropped in the fixture so far. Dropped lines skip the path being
+		 * measured, so the count must not move while the benchmark runs.
+		 * 
+		 * @return Lines dropped, or 0 if the fixture has no server
+		 */
+		long flooded()
+		{
+			return 0;
+		}
+	}
+	
+	/**
+	 * A finished benchmark: mean nanoseconds per operation and their standard deviation.
+	 */
+	private static class Result {
+		
+		final String name;
+		final int size;
+		final int iterations;
+		final double score;
+		final double error;
+		
+		Result(String name, int size, int iterations, double score, double error)
+		{
+			this.name = name;
+			this.size = size;
+			this.iterations = iterations;
+			this.score = score;
+			this.error = error;
+		}
+		
+		String key()
+		{
+			return name + "," + size;
+		}
+		
+		String toCsv()
+		{
+			return String.format(Locale.ROOT, "%s,%d,%d,%.1f,%.1f,ns/op", name, size, iterations, score, error);
+		}
+	}
+	
+	/**
+	 * Build the list of benchmarks.
+	 * 
+	 * @return Every benchmark, in the order they run
+	 */
+	private List<Benchmark> benchmarks()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		
+		// Splitting a chat line into timestamp, sender, command and arguments
+		benchmarks.add(new Benchmark("parse.chat", 0) {
+			
+			final ParsedMessage parsed = new ParsedMessage();
+			
+			@Override
+			long run(long i)
+			{
+				parsed.parse("[12:34] <alice> the quick brown fox jumps over the lazy dog");
+				return parsed.message().length();
+			}
+		});
+		
+		benchmarks.add(new Benchmark("parse.command", 0) {
+			
+			final ParsedMessage parsed = new ParsedMessage();
+			
+			@Override
+			long run(long i)
+			{
+				parsed.parse("[12:34] <alice> /pmsg bob the quick brown fox");
+				return parsed.expectArgs(1) ? parsed.arg(0).length() : 0;
+			}
+		});
+		
+		// A chat line from one client reaching every client in the main room
+		for (final int clients : new int[] { 10, 100, 1000 })
+			benchmarks.add(new Benchmark("broadcast", clients) {
+				
+				BashTalkServer server;
+				BashTalkServer.Client sender;
+				
+				@Override
+				void setUp()
+				{
+					server = server();
+					sender = logIn(server, clients);
+				}
+				
+				@Override
+				long flooded()
+				{
+					return floodDropped(server);
+				}
+				
+				@Override
+				long run(long i)
+				{
+					return sender.handleLine("[12:34] <user0> the quick brown fox jumps over the lazy dog") ? 1 : 0;
+				}
+			});
+		
+		// Listing the online users
+		for (final int clients : new int[] { 100, 1000, 5000 })
+			benchmarks.add(new Benchmark("users", clients) {
+				
+				BashTalkServer server;
+				BashTalkServer.Client sender;
+				
+				@Override
+				void setUp()
+				{
+					server = server();
+					sender = logIn(server, clients);
+				}
+				
+				@Override
+				long flooded()
+				{
+					return floodDropped(server);
+				}
+				
+				@Override
+				long run(long i)
+				{
+					return sender.handleLine("[12:34] <user0> /users") ? 1 : 0;
+				}
+			});
+		
+		// Appending to the message cache once it is full, so every append evicts the oldest message
+		for (final int capacity : new int[] { 100, 10000 })
+			benchmarks.add(new Benchmark("cache.append", capacity) {
+				
+				MessageRing ring;
+				
+				@Override
+				void setUp()
+				{
+					ring = fullRing(capacity);
+				}
+				
+				@Override
+				long run(long i)
+				{
+					return ring.add("[12:34] <alice> the quick brown fox jumps over the lazy dog");
+				}
+			});
+		
+		// Copying the cache for a client that just logged in
+		for (final int capacity : new int[] { 100, 10000 })
+			benchmarks.add(new Benchmark("cache.snapshot", capacity) {
+				
+				MessageRing ring;
+				
+				@Override
+				void setUp()
+				{
+					ring = fullRing(capacity);
+				}
+				
+				@Override
+				long run(long i)
+				{
+					return ring.entries().size();
+				}
+			});
+		
+		benchmarks.add(new Benchmark("hashString", 0) {
+			
+			@Override
+			long run(long i)
+			{
+				return BashTalkServer.hashString("correct horse battery staple").length();
+			}
+		});
+		
+		benchmarks.add(new Benchmark("getTimestamp", 0) {
+			
+			@Override
+			long run(long i)
+			{
+				return BashTalkServer.getTimestamp().length();
+			}
+		});
+		
+		return benchmarks;
+	}
+	
+	/**
+	 * Create a server for the fixtures, without listening.
+	 * 
+	 * @return Server
+	 */
+	private static BashTalkServer server()
+	{
+		return new BashTalkServer(config(), "");
+	}
+	
+	/**
+	 * Build the settings the fixture servers run with. Every setting the chat path reads is given here rather than
+	 * taken from the server's defaults, so changing a default cannot change what a benchmark measures.
+	 * 
+	 * @return Benchmark settings
+	 */
+	private static ServerConfig config()
+	{
+		ServerConfig config = new ServerConfig();
+		config.useTerminal = false;
+		config.lookUpExternalIp = false;
+		config.externalIp = null;
+		
+		// Admission: every fixture client may log in
+		config.maxClients = Integer.MAX_VALUE;
+		config.maxHandshakes = Integer.MAX_VALUE;
+		config.handshakeTimeoutMillis = 30000;
+		
+		// Every client sends as fast as the benchmark runs; flood control would drop nearly every line
+		config.chatLimit = new double[] { 0, 1 };
+		config.commandLimit = new double[] { 0, 1 };
+		config.commandLimits = new HashMap<String, double[]>();
+		
+		// The sinks never answer a ping or go idle, so no timers run for them
+		config.heartbeatMillis = 0;
+		config.heartbeatTimeoutMillis = 0;
+		config.idleTimeoutMillis = 0;
+		
+		// History in memory only, so every broadcast appends to the ring and nothing goes to disk
+		config.historySize = 100;
+		config.historyBytes = 1024 * 1024;
+		config.maxReplay = 1000;
+		config.logDir = null;
+		
+		// Queue bounds the sinks never reach, since they drain on every message
+		config.maxQueuedMessages = 1024;
+		config.maxQueuedBytes = 1024 * 1024;
+		config.maxLagMillis = 30000;
+		config.slowConsumerPolicy = ServerConfig.SlowConsumerPolicy.DISCONNECT;
+		
+		// Running alone
+		config.nodeName = null;
+		config.clusterPort = 0;
+		config.peers = null;
+		return config;
+	}
+	
+	/**
+	 * Log a number of clients into a server, each discarding everything sent to it.
+	 * 
+	 * @param server
+	 *            - Server to log into
+	 * @param count
+	 *            - Number of clients
+	 * @return The first client
+	 */
+	private static BashTalkServer.Client logIn(BashTalkServer server, int count)
+	{
+		final Object[] discarded = new Object[OutboundQueue.MAX_BATCH];
+		BashTalkServer.Client first = null;
+		for (int i = 0; i < count; i++)
+		{
+			BashTalkServer.Client client = server.new Client(i) {
+				
+				@Override
+				protected void queued()
+				{
+					while (outbound.pollBatch(discarded, Long.MAX_VALUE) > 0)
+						;
+				}
+				
+				@Override
+				protected void closeTransport()
+				{
+				}
+			};
+			
+			// Log in through the real handshake
+			client.connected();
+			client.handleLine("user" + i);
+			if (first == null)
+				first = client;
+		}
+		
+		return first;
+	}
+	
+	/**
+	 * Count the lines flood control has dropped on a server.
+	 * 
+	 * @param server
+	 *            - Server to look at
+	 * @return Chat lines and commands dropped
+	 */
+	private static long floodDropped(BashTalkServer server)
+	{
+		Metrics metrics = server.getMetrics();
+		return metrics.counter("flood.dropped.chat").sum() + metrics.counter("flood.dropped.commands").sum();
+	}
+	
+	/**
+	 * Create a message ring with every slot filled.
+	 * 
+	 * @param capacity
+	 *            - Number of slots
+	 * @return Full ring
+	 */
+	private static MessageRing fullRing(int capacity)
+	{
+		MessageRing ring = new MessageRing(capacity, Long.MAX_VALUE, 0);
+		for (int i = 0; i < capacity; i++)
+			ring.add("[12:34] <alice> message " + i);
+		return ring;
+	}
+	
+	/**
+	 * Time one benchmark.
+	 * 
+	 * @param benchmark
+	 *            - Benchmark to run
+	 * @return Mean and deviation of the time per operation
+	 * @throws IllegalStateException
+	 *             If flood control dropped lines, so the run did not measure what it meant to
+	 */
+	private Result measure(Benchmark benchmark)
+	{
+		benchmark.setUp();
+		long flooded = benchmark.flooded();
+		
+		for (int i = 0; i < warmup; i++)
+			iteration(benchmark);
+		
+		double[] samples = new double[iterations];
+		for (int i = 0; i < iterations; i++)
+			samples[i] = iteration(benchmark);
+		
+		flooded = benchmark.flooded() - flooded;
+		if (flooded > 0)
+			throw new IllegalStateException(benchmark.name + "/" + benchmark.size + ": flood control dropped " + flooded + " lines, so the score would not measure the path it names");
+		
+		double mean = 0;
+		for (double sample : samples)
+			mean += sample;
+		mean /= samples.length;
+		
+		double variance = 0;
+		for (double sample : samples)
+			variance += (sample - mean) * (sample - mean);
+		double error = samples.length > 1 ? Math.sqrt(variance / (samples.length - 1)) : 0;
+		
+		return new Result(benchmark.name, benchmark.size, iterations, mean, error);
+	}
+	
+	/**
+	 * Run a benchmark repeatedly for one iteration's time.
+	 * 
+	 * @return Nanoseconds per operation
+	 */
+	private double iteration(Benchmark benchmark)
+	{
+		long budget = iterationMillis * 1000000L;
+		long ops = 0;
+		long result = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		
+		// Check the clock only every so often, doubling the batch so fast operations are not dominated by nanoTime
+		int batch = 1;
+		do
+		{
+			for (int i = 0; i < batch; i++)
+				result += benchmark.run(ops + i);
+			ops += batch;
+			if (batch < 1024)
+				batch <<= 1;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < budget);
+		
+		sink += result;
+		return (double) elapsed / ops;
+	}
+	
+	/**
+	 * Read results saved by an earlier run.
+	 * 
+	 * @param file
+	 *            - CSV file written with --out
+	 * @return Scores by benchmark name and size
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	private static Map<String, Double> readBaseline(String file) throws IOException
+	{
+		Map<String, Double> scores = new HashMap<String, Double>();
+		for (String line : Files.readAllLines(Paths.get(file)))
+		{
+			String[] fields = line.split(",");
+			if (line.equals(HEADER) || fields.length < 4)
+				continue;
+			
+			try
+			{
+				scores.put(fields[0] + "," + fields[1], Double.parseDouble(fields[3]));
+			}
+			catch (NumberFormatException e)
+			{
+				// Not a result line
+			}
+		}
+		return scores;
+	}
+	
+	/**
+	 * Parse one command line option.
+	 * 
+	 * @param arg
+	 *            - Option in --name=value form
+	 * @return Whether the option was understood
+	 */
+	private boolean apply(String arg)
+	{
+		int equals = arg.indexOf('=');
+		if (!arg.startsWith("--") || equals < 0)
+			return false;
+		
+		String value = arg.substring(equals + 1);
+		try
+		{
+			switch (arg.substring(2, equals))
+			{
+				case "warmup":
+					warmup = Integer.parseInt(value);
+					return warmup >= 0;
+				case "iterations":
+					iterations = Integer.parseInt(value);
+					return iterations > 0;
+				case "time":
+					iterationMillis = Long.parseLong(value);
+					return iterationMillis > 0;
+				case "filter":
+					filter = value;
+					return true;
+				case "out":
+					outFile = value;
+					return true;
+				case "baseline":
+					baselineFile = value;
+					return true;
+				case "threshold":
+					threshold = Double.parseDouble(value);
+					return threshold >= 0;
+				default:
+					return false;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Run every selected benchmark, print and save the results, and compare them with the baseline.
+	 * 
+	 * @return Number of regressions against the baseline
+	 * @throws IOException
+	 *             If the baseline cannot be read or the results cannot be saved
+	 */
+	private int runAll() throws IOException
+	{
+		Map<String, Double> baseline = baselineFile != null ? readBaseline(baselineFile) : null;
+		
+		report = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			
+			@Override
+			public void write(int b)
+			{
+			}
+		}));
+		
+		List<String> lines = new ArrayList<String>();
+		lines.add(HEADER);
+		report.println(HEADER);
+		
+		int regressions = 0;
+		try
+		{
+			for (Benchmark benchmark : benchmarks())
+			{
+				if (!benchmark.name.contains(filter))
+					continue;
+				
+				Result result = measure(benchmark);
+				lines.add(result.toCsv());
+				report.print(result.toCsv());
+				
+				Double before = baseline != null ? baseline.get(result.key()) : null;
+				if (before != null && before > 0)
+				{
+					double change = (result.score - before) / before * 100;
+					boolean regressed = change > threshold;
+					if (regressed)
+						regressions++;
+					report.print(String.format(Locale.ROOT, "\t# %+.1f%% vs baseline%s", change, regressed ? " REGRESSION" : ""));
+				}
+				report.println();
+			}
+		}
+		finally
+		{
+			System.setOut(report);
+		}
+		
+		if (outFile != null)
+			Files.write(Paths.get(outFile), lines);
+		
+		return regressions;
+	}
+	
+	/**
+	 * Run the benchmarks. Exits with status 1 if any benchmark regressed against the baseline, or did not measure
+	 * what it meant to.
+	 * 
+	 * @param args
+	 *            - Command line options
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Benchmarks benchmarks = new Benchmarks();
+		for (String arg : args)
+			if (!benchmarks.apply(arg))
+			{
+				System.out.println(USAGE);
+				System.exit(0);
+			}
+		
+		int regressions;
+		try
+		{
+			regressions = benchmarks.runAll();
+		}
+		catch (IllegalStateException e)
+		{
+			System.out.println(e.getMessage());
+			System.exit(1);
+			return;
+		}
+		
+		if (regressions > 0)
+		{
+			System.out.println(regressions + " benchmark(s) regressed by more than " + benchmarks.threshold + "%.");
+			System.exit(1);
+		}
+	}
+}
@@ -2,11 +2,13 @@ package bashtalkclient.core;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.time.*;
 import java.time.format.*;
 import java.util.*;
 
 import bashtalkclient.ui.*;
+import bashtalkcommon.protocol.*;
 
 public abstract class BashTalkClient {
 
@@ -17,6 +19,29 @@ public abstract class BashTalkClient {
 	protected BufferedReader in;
 	protected PrintWriter out;
 
+	// Set once the server agrees to the binary protocol; from then on frames replace lines both ways
+	protected boolean framed;
+	protected DataInputStream frameIn;
+	protected OutputStream frameOut;
+
+	// Set once the server has been greeted without taking frames; from then on every line it
+	// sends is stamped, "@<seq> " for a chat message and "@- " for anything else
+	protected boolean stamped;
+
+	// Sequence number of the message last returned by receive(), or -1 if it had none
+	protected long receivedSeq = -1;
+
+	// Sequence number of the newest chat message received; sent to the server on reconnect
+	protected long lastSeq = -1;
+
+	// Sequence numbers of recently received chat messages, by slot. Messages from different
+	// senders can arrive out of order, so a number below lastSeq is not always a repeat
+	private static final int SEEN_WINDOW = 1024;
+	private final long[] seen = new long[SEEN_WINDOW];
+
+	// The local input thread outlives reconnects, so it is only started once
+	private boolean inputStarted = false;
+
 	/*
 	 * Default constructor to initialize fields.
 	 * Uses localhost, port 9898, and a blank username.
@@ -36,6 +61,7 @@ public abstract class BashTalkClient {
 		this.host = host;
 		this.port = Integer.parseInt(port);
 		this.username = username;
+		Arrays.fill(this.seen, -1);
 	}
 
 	/*
@@ -47,130 +73,364 @@ public abstract class BashTalkClient {
 
 		try
 		{
-			// Create socket and set timeout to 2.5 seconds
-			this.socket = new Socket();
-			this.socket.connect(new InetSocketAddress(this.host, this.port), 2500);
+			connect();
+		}
+		catch (Exception err)
+		{
+			String message = "";
+			if (err.getMessage().indexOf("refused") != -1)
+				message = "Connection refused: Please try again later!";
+			else if (err.getMessage().indexOf("reset") != -1)
+				message = "Connection reset: The server closed the connection!";
+			else if (err.getMessage().indexOf("timed") != -1)
+				message = "Connection timed out: Please enter the correct IP and Port";
+			else
+				message = "Unhandled error:\n" + err.getMessage();
+
+			alertMessage(message);
+		}
+	}
 
-			// Create buffers for sending and receiving data from the server
-			this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-			this.out = new PrintWriter(this.socket.getOutputStream(), true);
+	/*
+	 * Open the connection, log in, receive the message history, and start listening.
+	 *
+	 */
+	private void connect() throws IOException
+	{
+		login();
+
+		// Generates a new thread so that the client can simultaneously listen to
+		// incoming messages
+		new Thread() {
 
-			// Checks for username validity and prints cached message history
-			while (true)
+			@Override
+			public void run()
 			{
+				try
+				{
+					listenMessage();
+				}
+				catch (IOException e)
+				{
+					// Connection dropped; try to pick up where we left off
+					if (!reconnect())
+						alertMessage("Error listening to messages!");
+				}
+				catch (Exception e)
+				{
+					alertMessage("Error listening to messages!");
+				}
+			}
+		}.start();
 
-				// Clear screen between username prompts
-				clearOutput();
+		if (this.inputStarted)
+			return;
+		this.inputStarted = true;
 
-				// Username prompt or max clients reached warning
-				String response = this.in.readLine();
+		// Generate a new thread so that the client can simultaneously listen for local input from the user
+		new Thread() {
 
-				// Server cannot accept any more clients
-				if (response.equals("Maximum number of clients reached."))
+			@Override
+			public void run()
+			{
+				try
 				{
-					alertMessage("Maximum number of clients reached. Please try again later.");
-					this.in.close();
-					this.out.close();
-					this.socket.close();
-					System.exit(0);
+					listenLocalInput();
 				}
+				catch (Exception e)
+				{
+					alertMessage("Error listening for local input!");
+				}
+			}
+		}.start();
+	}
 
-				// Use received instructions from the server to prompt the user for a username
-				// if they don't already have one
-				if (this.username.equals(""))
-					this.username = getInput(response);
+	/*
+	 * Open the connection, log in, and receive the message history.
+	 *
+	 */
+	protected void login() throws IOException
+	{
+		// Create socket and set timeout to 2.5 seconds
+		this.socket = new Socket();
+		this.socket.connect(new InetSocketAddress(this.host, this.port), 2500);
+
+		// Create buffers for sending and receiving data from the server
+		this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+		this.out = new PrintWriter(this.socket.getOutputStream(), true);
+		this.framed = false;
+		this.stamped = false;
+
+		// Checks for username validity and prints cached message history
+		boolean greeted = false;
+		while (true)
+		{
 
-				// Send username to server
-				this.out.println(this.username);
+			// Clear screen between username prompts unless messages are already on screen
+			if (this.lastSeq < 0)
+				clearOutput();
 
-				// Wait for valid username response
-				response = this.in.readLine();
+			// Username prompt or max clients reached warning
+			String response = receive();
+			if (response == null)
+				throw new IOException("Connection reset during login");
 
-				// Username has been accepted and server join is successful
-				if (response.equals("Username approved. Welcome."))
-				{
-					// Clear terminal
-					clearOutput();
-					appendMessage(response);
-					appendMessage("");
-
-					// Receive all cached messages
-					while (!response.equals("-- End of Message History --"))
-					{
-						// Receive each message and append to terminal
-						response = this.in.readLine();
-						appendMessage(response);
-					}
+			// Server cannot accept any more clients, or too many are logging in at once
+			if (response.equals("Maximum number of clients reached."))
+				serverFull(response);
 
-					appendMessage("");
+			// Tell the server the last message seen so it only sends what was missed,
+			// offer the binary protocol, and ask for heartbeats
+			if (!greeted)
+			{
+				this.out.println("/hello seq=" + this.lastSeq + " proto=" + Frame.PROTOCOL + " ping");
+				greeted = true;
 
-					// Break out of username error trap
-					break;
+				// Nothing else may be sent until the answer arrives, so no frame is read as a line
+				String answer = this.in.readLine();
+				if (answer == null)
+					throw new IOException("Connection reset during login");
 
+				if (answer.equals("/hello " + Frame.PROTOCOL))
+				{
+					this.frameIn = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+					this.frameOut = this.socket.getOutputStream();
+					this.framed = true;
 				}
 				else
-				{
+					this.stamped = true;
+			}
 
-					// Show invalid username error from server
-					alertMessage(response);
+			// Use received instructions from the server to prompt the user for a username
+			// if they don't already have one
+			if (this.username.equals(""))
+				this.username = getInput(response);
 
-					// Request new username
-					this.username = getInput("Please enter a valid username: ");
+			// Send username to server
+			transmit(Frame.text(this.username), this.username);
 
-					// User hit cancel or did not type anything
-					if (this.username == null || this.username.length() == 0)
-						System.exit(0);
-				}
-			}
+			// Wait for valid username response; the server may have filled up meanwhile
+			response = receive();
+			if (response == null)
+				throw new IOException("Connection reset during login");
+			if (response.equals("Maximum number of clients reached."))
+				serverFull(response);
 
-			// Generates a new thread so that the client can simultaneously listen to
-			// incoming messages
-			new Thread() {
+			// Username has been accepted and server join is successful
+			if (response.equals("Username approved. Welcome."))
+			{
+				// Clear terminal on first join; keep the conversation on screen after a reconnect
+				if (this.lastSeq < 0)
+					clearOutput();
+				appendMessage(response);
+				appendMessage("");
 
-				@Override
-				public void run()
+				// Receive all cached messages
+				while (!response.equals("-- End of Message History --"))
 				{
-					try
-					{
-						listenMessage();
-					}
-					catch (Exception e)
-					{
-						alertMessage("Error listening to messages!");
-					}
+					// Receive each message and append to terminal
+					response = receive();
+					if (response == null)
+						throw new IOException("Connection reset during login");
+
+					if (unseen())
+						appendMessage(response);
 				}
-			}.start();
 
-			// Generate a new thread so that the client can simultaneously listen for local input from the user
-			new Thread() {
+				appendMessage("");
 
-				@Override
-				public void run()
-				{
-					try
-					{
-						listenLocalInput();
-					}
-					catch (Exception e)
-					{
-						alertMessage("Error listening for local input!");
-					}
-				}
-			}.start();
+				// Break out of username error trap
+				break;
+
+			}
+			else
+			{
+
+				// Show invalid username error from server
+				alertMessage(response);
+
+				// Request new username
+				this.username = getInput("Please enter a valid username: ");
+
+				// User hit cancel or did not type anything
+				if (this.username == null || this.username.length() == 0)
+					System.exit(0);
+			}
 		}
-		catch (Exception err)
+	}
+
+	/*
+	 * Give up on a server that cannot take any more clients, or is too busy to right now.
+	 *
+	 */
+	private void serverFull(String reason) throws IOException
+	{
+		// Newer servers say how long to wait before trying again, as "/retry-after <seconds>",
+		// followed by "busy" when the server is not full but has too many logins under way
+		String when = "later";
+		try
 		{
-			String message = "";
-			if (err.getMessage().indexOf("refused") != -1)
-				message = "Connection refused: Please try again later!";
-			else if (err.getMessage().indexOf("reset") != -1)
-				message = "Connection reset: The server closed the connection!";
-			else if (err.getMessage().indexOf("timed") != -1)
-				message = "Connection timed out: Please enter the correct IP and Port";
-			else
-				message = "Unhandled error:\n" + err.getMessage();
+			this.socket.setSoTimeout(1000);
+			String hint = receive();
+			if (hint != null && hint.startsWith("/retry-after "))
+			{
+				String[] parts = hint.substring("/retry-after ".length()).trim().split(" ");
+				if (parts.length > 1 && parts[1].equals("busy"))
+					reason = "Server busy.";
 
-			alertMessage(message);
+				int seconds = Integer.parseInt(parts[0]);
+				if (seconds > 0)
+					when = "in " + seconds + " seconds";
+			}
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			// No hint
+		}
+
+		alertMessage(reason + " Please try again " + when + ".");
+		this.in.close();
+		this.out.close();
+		this.socket.close();
+		quit();
+
+		// Only reached when quit() leaves the program running
+		throw new IOException(reason);
+	}
+
+	/*
+	 * Reconnect after the connection drops. The server is told the last message seen,
+	 * so only missed messages are sent again.
+	 *
+	 */
+	private boolean reconnect()
+	{
+		final int ATTEMPTS = 5;
+
+		for (int attempt = 1; attempt <= ATTEMPTS; attempt++)
+		{
+			appendMessage("-- Connection lost. Reconnecting (" + attempt + "/" + ATTEMPTS + ") --");
+
+			try
+			{
+				this.socket.close();
+				Thread.sleep(2000);
+				connect();
+				return true;
+			}
+			catch (Exception e)
+			{
+				// Try again
+			}
+		}
+
+		return false;
+	}
+
+	/*
+	 * Remember the sequence number of the message just received. Returns false for a
+	 * message that was already received, or that is too old to tell.
+	 *
+	 */
+	protected boolean unseen()
+	{
+		long seq = this.receivedSeq;
+		if (seq < 0)
+			return true;
+
+		// Already seen, for instance through the history replay
+		int slot = (int) (seq % SEEN_WINDOW);
+		if (seq <= this.lastSeq - SEEN_WINDOW || this.seen[slot] == seq)
+			return false;
+
+		this.seen[slot] = seq;
+		this.lastSeq = Math.max(this.lastSeq, seq);
+		return true;
+	}
+
+	/*
+	 * Strip the stamp from a line and note its sequence number. Only the server writes
+	 * stamps, so a line without one is passed on as it is.
+	 *
+	 */
+	private String unstamp(String line)
+	{
+		// Stamped lines look like "@<seq> <message>" or "@- <message>"
+		int space = line.indexOf(' ');
+		if (line.charAt(0) != '@' || space < 2)
+			return line;
+
+		String stamp = line.substring(1, space);
+		if (!stamp.equals("-"))
+			try
+			{
+				this.receivedSeq = Long.parseLong(stamp);
+			}
+			catch (NumberFormatException e)
+			{
+				return line;
+			}
+
+		return line.substring(space + 1);
+	}
+
+	/*
+	 * Read the next message from the server, as a line or a frame, without its stamp. The
+	 * sequence number of a chat message is left in receivedSeq. Heartbeats are answered
+	 * here and never returned. Returns null once the server hangs up.
+	 *
+	 */
+	protected String receive() throws IOException
+	{
+		while (true)
+		{
+			String msg = receiveOne();
+			if (!"/ping".equals(msg))
+				return msg;
+
+			transmit(Frame.text("/pong"), "/pong");
+		}
+	}
+
+	/*
+	 * Read one message from the server, heartbeats included.
+	 *
+	 */
+	private String receiveOne() throws IOException
+	{
+		this.receivedSeq = -1;
+		if (!this.framed)
+		{
+			String line = this.in.readLine();
+			return this.stamped && line != null && !line.isEmpty() ? unstamp(line) : line;
+		}
+
+		Frame frame = Frame.read(this.frameIn);
+		if (frame == null)
+			return null;
+
+		// Only chat frames are numbered; the body of any frame is taken as it is
+		if (frame.type == Frame.TYPE_CHAT)
+			this.receivedSeq = frame.seq;
+		return frame.body;
+	}
+
+	/*
+	 * Send a frame, or the equivalent line if the server does not speak the binary protocol.
+	 *
+	 */
+	private void transmit(Frame frame, String line) throws IOException
+	{
+		if (!this.framed)
+		{
+			this.out.println(line);
+			return;
+		}
+
+		ByteBuffer bytes = frame.encode();
+		synchronized (this.frameOut)
+		{
+			this.frameOut.write(bytes.array(), 0, bytes.limit());
 		}
 	}
 
@@ -183,7 +443,25 @@ public abstract class BashTalkClient {
 		DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm");
 		LocalDateTime now = LocalDateTime.now();
 
-		this.out.println("[" + dtf.format(now) + "] <" + username + "> " + msg);
+		// Commands travel in their own field of a frame
+		String command = "";
+		String body = msg;
+		if (msg.startsWith("/"))
+		{
+			int space = msg.indexOf(' ');
+			command = space < 0 ? msg : msg.substring(0, space);
+			body = space < 0 ? "" : msg.substring(space + 1);
+		}
+
+		Frame frame = new Frame(Frame.TYPE_CHAT, -1, System.currentTimeMillis(), username, command, body);
+		try
+		{
+			transmit(frame, "[" + dtf.format(now) + "] <" + username + "> " + msg);
+		}
+		catch (IOException e)
+		{
+			// The listening thread notices the dead connection and reconnects
+		}
 	}
 
 	/*
@@ -196,7 +474,7 @@ public abstract class BashTalkClient {
 		while (true)
 		{
 			// Wait for a message
-			String incoming = this.in.readLine();
+			String incoming = receive();
 
 			// Server has closed socket
 			if (incoming == null)
@@ -215,10 +493,20 @@ public abstract class BashTalkClient {
 			}
 
 			// Append the message to the terminal
-			appendMessage(incoming);
+			if (unseen())
+				appendMessage(incoming);
 		}
 	}
 
+	/*
+	 * Leave the program because the server cannot take the client.
+	 *
+	 */
+	protected void quit()
+	{
+		System.exit(0);
+	}
+
 	/*
 	 * Begin listening for local input
 	 *
@@ -0,0 +1,160 @@
+package bashtalkclient.core;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Simulated client driven by the load generator. It logs in, drains the history and reads
+ * messages with the same protocol code as the other modes, but has no UI, takes no input,
+ * and never exits the program.
+ *
+ */
+public class ClientLoadMode extends BashTalkClient {
+
+	private final LoadGenerator generator;
+
+	// Intended send times of /users requests still waiting for their answer
+	final Queue<Long> pendingUsers;
+
+	private volatile boolean stopped;
+	private int retries;
+
+	public ClientLoadMode(LoadGenerator generator, String host, int port, String username)
+	{
+		super(host, String.valueOf(port), username);
+		this.generator = generator;
+		this.pendingUsers = new ConcurrentLinkedQueue<Long>();
+		this.stopped = false;
+		this.retries = 0;
+	}
+
+	/*
+	 * Log in and start reading messages on a thread of its own. Returns whether the
+	 * server accepted the client.
+	 *
+	 */
+	public boolean start()
+	{
+		long started = System.nanoTime();
+		try
+		{
+			login();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			this.stopped = true;
+			closeSocket();
+			return false;
+		}
+		this.generator.joined(System.nanoTime() - started);
+
+		// Thousands of readers run at once, so each gets a small stack
+		Thread reader = new Thread(null, new Runnable() {
+
+			@Override
+			public void run()
+			{
+				read();
+			}
+		}, "load-" + this.username, 128 * 1024);
+		reader.setDaemon(true);
+		reader.start();
+		return true;
+	}
+
+	/*
+	 * Hand every message received to the generator until the client is stopped or the
+	 * server hangs up.
+	 *
+	 */
+	private void read()
+	{
+		try
+		{
+			while (!this.stopped)
+			{
+				String incoming = receive();
+				if (incoming == null)
+					break;
+
+				if (unseen())
+					this.generator.received(this, incoming, System.nanoTime());
+			}
+		}
+		catch (IOException e)
+		{
+			// Counted below unless the generator closed the socket itself
+		}
+
+		if (!this.stopped)
+			this.generator.dropped();
+	}
+
+	/*
+	 * Log out and close the connection.
+	 *
+	 */
+	public void stop()
+	{
+		this.stopped = true;
+		sendMessage("/exit");
+		closeSocket();
+	}
+
+	public String getUsername()
+	{
+		return this.username;
+	}
+
+	private void closeSocket()
+	{
+		try
+		{
+			if (this.socket != null)
+				this.socket.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing left to release
+		}
+	}
+
+	@Override
+	protected void quit()
+	{
+		// The server is full; login() fails and only this client gives up
+		this.stopped = true;
+	}
+
+	@Override
+	protected void listenLocalInput()
+	{
+		// The generator sends for every client
+	}
+
+	@Override
+	protected String getInput(String prompt)
+	{
+		// The name was taken, perhaps by an earlier run still logging out; try another
+		this.retries++;
+		return this.username.replaceAll("~\\d+$", "") + "~" + this.retries;
+	}
+
+	@Override
+	protected void appendMessage(String msg)
+	{
+		// History and login messages are not measured
+	}
+
+	@Override
+	protected void alertMessage(String alert)
+	{
+	}
+
+	@Override
+	protected void clearOutput()
+	{
+	}
+
+}
@@ -0,0 +1,314 @@
+package bashtalkclient.core;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import bashtalkcommon.metrics.*;
+
+/*
+ * Headless load generator for sizing a BashTalk server. It logs in many simulated
+ * clients with the real client protocol, then sends a mix of chat messages, private
+ * messages and /users requests at a fixed total rate, and reports how long messages
+ * took to be delivered.
+ *
+ * Every message carries the time it was meant to be sent. Latency is measured from
+ * then, not from when the sender got around to it, so a stalled server cannot hide
+ * the wait it causes.
+ *
+ */
+public class LoadGenerator {
+
+	private static final String USAGE = "Usage: java bashtalkclient.core.LoadGenerator [options]" + "\n\t--host=<address>\tServer address (default 127.0.0.1)" + "\n\t--port=<port>\t\tServer port (default 9898)" + "\n\t--clients=<count>\tSimulated clients (default 100)" + "\n\t--ramp=<per second>\tLogins per second (default 200)" + "\n\t--rate=<per second>\tMessages per second, across all clients (default 100)" + "\n\t--duration=<seconds>\tHow long to send (default 30)" + "\n\t--mix=<chat>,<pmsg>,<users>\tPercent of messages of each kind (default 90,8,2)" + "\n\t--size=<chars>\t\tLength of each chat message (default 64)" + "\n\t--name=<prefix>\t\tUsername prefix (default load)";
+
+	// Marks the messages this generator sent, followed by the intended send time
+	private static final String MARK = "~lg ";
+
+	private String host = "127.0.0.1";
+	private int port = 9898;
+	private int clientCount = 100;
+	private double ramp = 200;
+	private double rate = 100;
+	private long durationSeconds = 30;
+	private int chatPercent = 90;
+	private int pmsgPercent = 8;
+	private int size = 64;
+	private String prefix = "load";
+
+	private final Histogram joinLatency = new Histogram();
+	private final Histogram chatLatency = new Histogram();
+	private final Histogram pmsgLatency = new Histogram();
+	private final Histogram usersLatency = new Histogram();
+
+	private final AtomicLong chatsSent = new AtomicLong();
+	private final AtomicLong pmsgsSent = new AtomicLong();
+	private final AtomicLong usersSent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/*
+	 * Record a finished login.
+	 *
+	 */
+	void joined(long nanos)
+	{
+		this.joinLatency.record(nanos);
+	}
+
+	/*
+	 * Record a connection the server closed.
+	 *
+	 */
+	void dropped()
+	{
+		this.dropped.incrementAndGet();
+	}
+
+	/*
+	 * Measure a message a simulated client received.
+	 *
+	 */
+	void received(ClientLoadMode client, String msg, long now)
+	{
+		if (msg.contains("Online Users: ["))
+		{
+			// Answers come back in order, and only /users sent by the generator are timed
+			Long sent = client.pendingUsers.poll();
+			if (sent != null)
+				this.usersLatency.record(now - sent);
+			return;
+		}
+
+		int mark = msg.indexOf(MARK);
+		if (mark < 0)
+			return;
+
+		int start = mark + MARK.length();
+		int end = msg.indexOf(' ', start);
+		long sent;
+		try
+		{
+			sent = Long.parseLong(end < 0 ? msg.substring(start) : msg.substring(start, end));
+		}
+		catch (NumberFormatException e)
+		{
+			return;
+		}
+
+		// A private message is echoed to its sender too; only the recipient's copy counts
+		if (!msg.startsWith("Private: "))
+			this.chatLatency.record(now - sent);
+		else if (msg.contains("@" + client.getUsername() + "> "))
+			this.pmsgLatency.record(now - sent);
+	}
+
+	/*
+	 * Log in the clients, send for the configured time, and report.
+	 *
+	 */
+	public void run() throws InterruptedException
+	{
+		System.out.println("Logging in " + this.clientCount + " clients to " + this.host + "[" + this.port + "]...");
+
+		List<ClientLoadMode> connected = new ArrayList<ClientLoadMode>();
+		long loginStart = System.nanoTime();
+		long rampInterval = (long) (1e9 / this.ramp);
+		for (int i = 0; i < this.clientCount; i++)
+		{
+			pace(loginStart + i * rampInterval);
+
+			ClientLoadMode client = new ClientLoadMode(this, this.host, this.port, this.prefix + i);
+			if (client.start())
+				connected.add(client);
+		}
+		double loginSeconds = (System.nanoTime() - loginStart) / 1e9;
+
+		System.out.println(connected.size() + " logged in, " + (this.clientCount - connected.size()) + " refused, in " + String.format(Locale.ROOT, "%.1f", loginSeconds) + "s.");
+		if (connected.isEmpty())
+			return;
+
+		ClientLoadMode[] clients = connected.toArray(new ClientLoadMode[0]);
+		send(clients);
+
+		// Give the last messages time to arrive
+		Thread.sleep(2000);
+		for (ClientLoadMode client : clients)
+			client.stop();
+
+		report(clients.length);
+	}
+
+	/*
+	 * Send messages at the configured rate, each from a random client. Runs on one
+	 * thread, so at very high rates the sends fall behind schedule; they are still
+	 * timed from when they were due.
+	 *
+	 */
+	private void send(ClientLoadMode[] clients)
+	{
+		Random random = new Random();
+		String padding = padding();
+
+		long interval = (long) (1e9 / this.rate);
+		long start = System.nanoTime();
+		long end = start + this.durationSeconds * 1000000000L;
+		long nextProgress = start + 5000000000L;
+
+		for (long due = start; due < end; due += interval)
+		{
+			pace(due);
+
+			int sender = random.nextInt(clients.length);
+			ClientLoadMode from = clients[sender];
+			int roll = random.nextInt(100);
+			if (roll < this.chatPercent)
+			{
+				from.sendMessage(MARK + due + " " + padding);
+				this.chatsSent.incrementAndGet();
+			}
+			else if (roll < this.chatPercent + this.pmsgPercent)
+			{
+				// Someone other than the sender, who would get both copies
+				int offset = clients.length > 1 ? 1 + random.nextInt(clients.length - 1) : 0;
+				ClientLoadMode to = clients[(sender + offset) % clients.length];
+				from.sendMessage("/pmsg " + to.getUsername() + " " + MARK + due);
+				this.pmsgsSent.incrementAndGet();
+			}
+			else
+			{
+				from.pendingUsers.add(due);
+				from.sendMessage("/users");
+				this.usersSent.incrementAndGet();
+			}
+
+			if (due >= nextProgress)
+			{
+				System.out.println(String.format(Locale.ROOT, "%4ds  sent %d  delivered %d  p99 %.2fms", (due - start) / 1000000000L, this.chatsSent.get() + this.pmsgsSent.get() + this.usersSent.get(), this.chatLatency.count(), this.chatLatency.percentile(99) / 1e6));
+				nextProgress += 5000000000L;
+			}
+		}
+	}
+
+	/*
+	 * Wait until the given System.nanoTime() reading.
+	 *
+	 */
+	private static void pace(long due)
+	{
+		long wait;
+		while ((wait = due - System.nanoTime()) > 0)
+			LockSupport.parkNanos(wait);
+	}
+
+	/*
+	 * Build the filler that brings each chat message up to the configured size.
+	 *
+	 */
+	private String padding()
+	{
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < this.size - 24)
+			padding.append("the quick brown fox jumps over the lazy dog ");
+		padding.setLength(Math.max(0, this.size - 24));
+		return padding.toString().trim();
+	}
+
+	/*
+	 * Print the throughput and latency percentiles.
+	 *
+	 */
+	private void report(int clients)
+	{
+		long chats = this.chatsSent.get();
+		long delivered = this.chatLatency.count();
+
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "Clients: %d, dropped by the server: %d", clients, this.dropped.get()));
+		System.out.println(String.format(Locale.ROOT, "Sent: %d chat, %d pmsg, %d users in %ds (%.0f/s)", chats, this.pmsgsSent.get(), this.usersSent.get(), this.durationSeconds, (chats + this.pmsgsSent.get() + this.usersSent.get()) / (double) this.durationSeconds));
+		System.out.println(String.format(Locale.ROOT, "Delivered: %d chat messages of %d expected (%.0f/s)", delivered, chats * clients, delivered / (double) this.durationSeconds));
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %10s", "latency", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		printLatency("login", this.joinLatency);
+		printLatency("chat", this.chatLatency);
+		printLatency("pmsg", this.pmsgLatency);
+		printLatency("users", this.usersLatency);
+	}
+
+	private static void printLatency(String name, Histogram histogram)
+	{
+		System.out.println(String.format(Locale.ROOT, "%-10s %10d %10.2f %10.2f %10.2f %10.2f %10.2f", name, histogram.count(), histogram.percentile(50) / 1e6, histogram.percentile(90) / 1e6, histogram.percentile(99) / 1e6, histogram.percentile(99.9) / 1e6, histogram.max() / 1e6));
+	}
+
+	/*
+	 * Parse one command line option. Returns whether the option was understood.
+	 *
+	 */
+	private boolean apply(String arg)
+	{
+		int equals = arg.indexOf('=');
+		if (!arg.startsWith("--") || equals < 0)
+			return false;
+
+		String value = arg.substring(equals + 1);
+		try
+		{
+			switch (arg.substring(2, equals))
+			{
+				case "host":
+					this.host = value;
+					return true;
+				case "port":
+					this.port = Integer.parseInt(value);
+					return this.port > 0 && this.port < 65536;
+				case "clients":
+					this.clientCount = Integer.parseInt(value);
+					return this.clientCount > 0;
+				case "ramp":
+					this.ramp = Double.parseDouble(value);
+					return this.ramp > 0;
+				case "rate":
+					this.rate = Double.parseDouble(value);
+					return this.rate > 0;
+				case "duration":
+					this.durationSeconds = Long.parseLong(value);
+					return this.durationSeconds > 0;
+				case "mix":
+					String[] parts = value.split(",");
+					if (parts.length != 3)
+						return false;
+					this.chatPercent = Integer.parseInt(parts[0]);
+					this.pmsgPercent = Integer.parseInt(parts[1]);
+					return this.chatPercent >= 0 && this.pmsgPercent >= 0 && this.chatPercent + this.pmsgPercent + Integer.parseInt(parts[2]) == 100;
+				case "size":
+					this.size = Integer.parseInt(value);
+					return this.size > 0;
+				case "name":
+					this.prefix = value;
+					return !value.isEmpty();
+				default:
+					return false;
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+	}
+
+	/*
+	 * Runs the load generator
+	 *
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		LoadGenerator generator = new LoadGenerator();
+		for (String arg : args)
+			if (!generator.apply(arg))
+			{
+				System.out.println(USAGE);
+				System.exit(0);
+			}
+
+		generator.run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,169 @@
+package bashtalkcommon.metrics;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Distribution of recorded durations, in the style of an HDR histogram. Values are counted in buckets whose width
+ * grows with the value, so every bucket is within a few percent of the values it holds and the whole range of a long
+ * fits in a couple of thousand counters. Recording is lock-free and allocation-free; reads are approximate while
+ * values are being recorded.
+ *
+ * Shared by the server's metrics and the load generator, so both report latency the same way.
+ *
+ * @version 1.0.0
+ */
+public class Histogram {
+
+	// Significant bits kept per value; values below 2^BITS are counted exactly, larger ones to within 1 part in 2^(BITS - 1)
+	private static final int BITS = 6;
+	private static final int SUB_BUCKETS = 1 << BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - BITS) * HALF;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	/**
+	 * Create an empty histogram.
+	 */
+	public Histogram()
+	{
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Record one value.
+	 *
+	 * @param value
+	 *            - Value to record; negative values count as 0
+	 */
+	public void record(long value)
+	{
+		if (value < 0)
+			value = 0;
+
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	/**
+	 * Record the time elapsed since a {@link System#nanoTime()} reading.
+	 *
+	 * @param startNanos
+	 *            - Reading taken when the timed work began
+	 */
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Count the recorded values.
+	 *
+	 * @return Number of values
+	 */
+	public long count()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * Get the largest recorded value.
+	 *
+	 * @return Largest value, or 0 if none were recorded
+	 */
+	public long max()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Get the mean of the recorded values.
+	 *
+	 * @return Mean value, or 0 if none were recorded
+	 */
+	public long mean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	/**
+	 * Get the value at a percentile. The answer is the top of the bucket the percentile falls in, so it may overstate
+	 * the true value by the width of one bucket, but never by more than the largest recorded value.
+	 *
+	 * @param percentile
+	 *            - Percentile to look up, from 0 to 100
+	 * @return Value that at least that share of recorded values do not exceed, or 0 if none were recorded
+	 */
+	public long percentile(double percentile)
+	{
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highest(i), max.get());
+		}
+
+		return max.get();
+	}
+
+	/**
+	 * Forget every recorded value.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Find the bucket a value is counted in. Small values have a bucket each; above that, each power of two is split
+	 * into HALF buckets of equal width.
+	 */
+	private static int bucket(long value)
+	{
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		// Shift that leaves the top BITS bits of the value, the highest of which is always set
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >>> shift) - HALF);
+	}
+
+	/**
+	 * Get the largest value counted in a bucket.
+	 */
+	private static long highest(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+		long top = (bucket - SUB_BUCKETS) % HALF + HALF;
+
+		// For the last bucket this wraps around to exactly the largest long
+		return ((top + 1) << shift) - 1;
+	}
+}
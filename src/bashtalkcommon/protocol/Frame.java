@@ -0,0 +1,189 @@
+package bashtalkcommon.protocol;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * One message of the binary BashTalk protocol. Clients opt in during the handshake by sending
+ * "/hello proto=frame1"; the server answers "/hello frame1" and both sides switch from text lines to frames.
+ *
+ * A frame on the wire is:
+ *
+ * <pre>
+ * int    length of everything below
+ * byte   version
+ * byte   type
+ * long   sequence number (-1 if none)
+ * long   time in milliseconds since the epoch
+ * short  sender length, then sender (UTF-8)
+ * short  command length, then command (UTF-8)
+ * bytes  body (UTF-8), the rest of the frame
+ * </pre>
+ *
+ * Bodies may contain line breaks.
+ *
+ * @version 1.0.0
+ */
+public class Frame {
+
+	public static final byte VERSION = 1;
+	public static final String PROTOCOL = "frame1";
+
+	/** Largest frame accepted, not counting the length field */
+	public static final int MAX_LENGTH = 64 * 1024;
+
+	/** Protocol text such as a username, a prompt, or a server notice */
+	public static final byte TYPE_TEXT = 1;
+
+	/** A chat message or command */
+	public static final byte TYPE_CHAT = 2;
+
+	/** An event passed between the servers of a cluster; never sent to clients */
+	public static final byte TYPE_PEER = 3;
+
+	private static final Charset UTF_8 = StandardCharsets.UTF_8;
+
+	// Version, type, sequence, time, and the two string lengths
+	private static final int HEADER_LENGTH = 1 + 1 + 8 + 8 + 2 + 2;
+
+	public final byte type;
+	public final long seq;
+	public final long time;
+	public final String sender;
+	public final String command;
+	public final String body;
+
+	public Frame(byte type, long seq, long time, String sender, String command, String body)
+	{
+		this.type = type;
+		this.seq = seq;
+		this.time = time;
+		this.sender = sender;
+		this.command = command;
+		this.body = body;
+	}
+
+	/**
+	 * Create a text frame.
+	 *
+	 * @param text
+	 *            - Protocol text
+	 * @return Frame carrying the text
+	 */
+	public static Frame text(String text)
+	{
+		return new Frame(TYPE_TEXT, -1, System.currentTimeMillis(), "", "", text);
+	}
+
+	/**
+	 * Encode this frame, including its length field.
+	 *
+	 * @return Buffer ready to be written
+	 * @throws IOException
+	 *             If the frame is longer than {@link #MAX_LENGTH}
+	 */
+	public ByteBuffer encode() throws IOException
+	{
+		byte[] senderBytes = sender.getBytes(UTF_8);
+		byte[] commandBytes = command.getBytes(UTF_8);
+		byte[] bodyBytes = body.getBytes(UTF_8);
+
+		int length = HEADER_LENGTH + senderBytes.length + commandBytes.length + bodyBytes.length;
+		if (length > MAX_LENGTH || senderBytes.length > Short.MAX_VALUE || commandBytes.length > Short.MAX_VALUE)
+			throw new IOException("Frame too long: " + length + " bytes");
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+		buffer.putInt(length).put(VERSION).put(type).putLong(seq).putLong(time);
+		buffer.putShort((short) senderBytes.length).put(senderBytes);
+		buffer.putShort((short) commandBytes.length).put(commandBytes);
+		buffer.put(bodyBytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Check the length field of a frame before reading the rest of it.
+	 *
+	 * @param length
+	 *            - Value of the length field
+	 * @throws IOException
+	 *             If no valid frame has that length
+	 */
+	public static void checkLength(int length) throws IOException
+	{
+		if (length < HEADER_LENGTH || length > MAX_LENGTH)
+			throw new IOException("Invalid frame length: " + length);
+	}
+
+	/**
+	 * Decode a frame whose bytes, after the length field, are in an array.
+	 *
+	 * @param bytes
+	 *            - Array holding the frame
+	 * @param offset
+	 *            - Position of the version byte
+	 * @param length
+	 *            - Value of the length field
+	 * @return Decoded frame
+	 * @throws IOException
+	 *             If the frame is malformed or of an unknown version
+	 */
+	public static Frame decode(byte[] bytes, int offset, int length) throws IOException
+	{
+		checkLength(length);
+		ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+
+		if (in.get() != VERSION)
+			throw new IOException("Unsupported frame version");
+
+		byte type = in.get();
+		long seq = in.getLong();
+		long time = in.getLong();
+		String sender = readString(in, in.getShort());
+		String command = readString(in, in.getShort());
+		String body = readString(in, in.remaining());
+
+		return new Frame(type, seq, time, sender, command, body);
+	}
+
+	/**
+	 * Read one frame from a stream.
+	 *
+	 * @param in
+	 *            - Stream positioned at a length field
+	 * @return Next frame, or null if the stream ended cleanly before it
+	 * @throws IOException
+	 *             If the stream fails or the frame is malformed
+	 */
+	public static Frame read(DataInputStream in) throws IOException
+	{
+		int length;
+		try
+		{
+			length = in.readInt();
+		}
+		catch (EOFException e)
+		{
+			return null;
+		}
+
+		checkLength(length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return decode(bytes, 0, length);
+	}
+
+	/**
+	 * Read a string of a given length from the buffer.
+	 */
+	private static String readString(ByteBuffer in, int length) throws IOException
+	{
+		if (length < 0 || length > in.remaining())
+			throw new IOException("Malformed frame");
+
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+}
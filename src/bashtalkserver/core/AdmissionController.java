@@ -0,0 +1,144 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Decides, as each connection is accepted, whether the server takes it. A connection is turned away while the server
+ * is full or while too many others are still logging in; otherwise it takes one of the handshake places until it
+ * logs in or goes away. Places are taken atomically, so any number of accepting threads can share one controller.
+ * Logins still claim their place in the {@link ClientRegistry}, which settles any race for the last one.
+ * 
+ * A rejected connection is told the server is full, the only refusal older clients understand, and then when to try
+ * again; a connection refused because the server is busy with other logins has "busy" added to that second line. It
+ * is closed at once. The notice is written without blocking, so a peer that does not read cannot
+ * hold up the accepting thread.
+ * 
+ * Every decision is counted: connections.accepted, and connections.rejected along with the reason for it.
+ * 
+ * @version 1.0.0
+ */
+class AdmissionController {
+	
+	private final ServerConfig config;
+	private final ClientRegistry clients;
+	private final Metrics metrics;
+	private final AtomicInteger handshakes;
+	
+	// Encoded once; every rejection for the same reason sends the same bytes
+	private final byte[] full;
+	private final byte[] busy;
+	
+	/**
+	 * @param config
+	 *            - Limits on clients and handshakes, and the retry delay to suggest
+	 * @param clients
+	 *            - Logged in clients
+	 * @param metrics
+	 *            - Where to count decisions
+	 */
+	AdmissionController(ServerConfig config, ClientRegistry clients, Metrics metrics)
+	{
+		this.config = config;
+		this.clients = clients;
+		this.metrics = metrics;
+		handshakes = new AtomicInteger();
+		full = ("Maximum number of clients reached." + System.lineSeparator() + retryHint() + System.lineSeparator()).getBytes();
+		busy = ("Maximum number of clients reached." + System.lineSeparator() + retryHint() + " busy" + System.lineSeparator()).getBytes();
+	}
+	
+	/**
+	 * Decide whether to take a new connection, and turn it away if not. An admitted connection holds a handshake place
+	 * until it is given back with {@link #release()}.
+	 * 
+	 * @param channel
+	 *            - Accepted connection
+	 * @return Whether the connection is admitted; if not, it has been closed
+	 */
+	boolean admit(SocketChannel channel)
+	{
+		if (clients.size() >= config.maxClients)
+		{
+			metrics.increment("connections.rejected");
+			metrics.increment("connections.rejected.full");
+			reject(channel, full);
+			return false;
+		}
+		
+		while (true)
+		{
+			int current = handshakes.get();
+			if (current >= config.maxHandshakes)
+			{
+				metrics.increment("connections.rejected");
+				metrics.increment("connections.rejected.handshakes");
+				reject(channel, busy);
+				return false;
+			}
+			
+			if (handshakes.compareAndSet(current, current + 1))
+			{
+				metrics.increment("connections.accepted");
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Give back the handshake place of a connection that logged in or went away.
+	 */
+	void release()
+	{
+		handshakes.decrementAndGet();
+	}
+	
+	/**
+	 * Count the connections holding a handshake place.
+	 * 
+	 * @return Number of connections logging in
+	 */
+	int handshakes()
+	{
+		return handshakes.get();
+	}
+	
+	/**
+	 * Line telling a turned away client how many seconds to wait before trying again.
+	 * 
+	 * @return Retry hint
+	 */
+	String retryHint()
+	{
+		return "/retry-after " + config.retryAfterSeconds;
+	}
+	
+	/**
+	 * Turn a connection away: tell the client why and when to try again, then close it.
+	 */
+	private void reject(SocketChannel channel, byte[] notice)
+	{
+		try
+		{
+			// A fresh socket's send buffer takes the notice whole; if it does not, the client just misses it
+			channel.configureBlocking(false);
+			channel.write(ByteBuffer.wrap(notice));
+		}
+		catch (IOException e)
+		{
+			// The client already gave up
+		}
+		finally
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing left to release
+			}
+		}
+	}
+}
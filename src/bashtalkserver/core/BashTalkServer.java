@@ -4,13 +4,22 @@ import java.awt.*;
 import java.io.*;
 import java.math.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.security.*;
 import java.time.*;
 import java.time.format.*;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 import javax.swing.*;
 
+import bashtalkcommon.protocol.Frame;
+
 /**
  * Implementation of BashTalkServer with both terminal and GUI capabilities.
  * 
@@ -18,18 +27,44 @@ import javax.swing.*;
  */
 public class BashTalkServer {
 	
-	private static final int DEFAULT_PORT = 9898;
+	static final int DEFAULT_PORT = 9898;
+	static final String MAIN_ROOM = "#main";
 	
-	private String host;
+	// External address, filled in by a background lookup unless given in the settings; null until known
+	private volatile String host;
 	private int port;
-	private int clientNumber;
+	private final AtomicInteger clientNumbers;
 	private boolean useTerminal;
 	private String hashedPassword;
-	private ArrayList<Client> clients;
-	private ArrayList<String> messageCache;
-	private final int MAX_CLIENTS = 50;
-	private final int MAX_CACHE_SIZE = 100;
-	private final String HELP_TEXT = "\n\tClear terminal: /clear" + "\n\tExit terminal: /exit" + "\n\tClear Cache (superuser): /clear_cache" + "\n\tUsers online: /users" + "\n\tPrivate Message: /pmsg <user> <message>" + "\n\tMute: /mute\n\tUnmute: /unmute" + "\n\tBan (superuser): /ban <user>";
+	private ServerConfig config;
+	private Metrics metrics;
+	private SelectorLoop[] loops;
+	private ClientRegistry clients;
+	private MessageRing messageCache;
+	private MessageLog messageLog;
+	
+	// Rooms by name; the main room holds the logged history and is never removed
+	private final ConcurrentHashMap<String, Room> rooms;
+	private Room mainRoom;
+	
+	// Link to the other nodes of a cluster, or null when running alone
+	private Cluster cluster;
+	private final CommandRegistry commands;
+	
+	// Shortest time between two "sending too fast" notices to the same client
+	private static final long FLOOD_NOTICE_NANOS = 5000000000L;
+	
+	// How long a banned or kicked client stays connected, so the notice reaches it before the connection closes
+	private static final long DISMISS_GRACE_MILLIS = 1000;
+	
+	// Heartbeat and idle checks run on a timer wheel; one turn of 512 ticks of 100 ms covers the usual intervals
+	private static final long TIMER_TICK_MILLIS = 100;
+	private static final int TIMER_SLOTS = 512;
+	private final TimerWheel timers;
+	
+	// Decides which connections the server takes, and tracks the ones still logging in
+	private AdmissionController admission;
+	private final String HELP_TEXT = "\n\tClear terminal: /clear" + "\n\tExit terminal: /exit" + "\n\tClear Cache (superuser): /clear_cache" + "\n\tUsers online: /users" + "\n\tPrivate Message: /pmsg <user> <message>" + "\n\tMute: /mute\n\tUnmute: /unmute" + "\n\tBan (superuser): /ban <user>" + "\n\tJoin room: /join <room>" + "\n\tLeave room: /part [room]" + "\n\tRooms: /rooms" + "\n\tServer stats (superuser): /stats";
 	
 	/**
 	 * Construct BashTalkServer object with given port and password.
@@ -41,14 +76,36 @@ public class BashTalkServer {
 	 */
 	public BashTalkServer(int port, String plainTxtPassword)
 	{
-		this.port = port;
+		this(configForPort(port), plainTxtPassword);
+	}
+	
+	/**
+	 * Construct BashTalkServer object with the given settings and password.
+	 * 
+	 * @param config
+	 *            - Server settings
+	 * @param plainTxtPassword
+	 *            - Administrator password for server
+	 */
+	public BashTalkServer(ServerConfig config, String plainTxtPassword)
+	{
+		this.config = config;
+		this.port = config.listen.isEmpty() ? config.port : config.listen.get(0).getPort();
+		this.useTerminal = config.useTerminal;
+		metrics = new Metrics();
+		timers = new TimerWheel(TIMER_TICK_MILLIS, TIMER_SLOTS);
 		hashedPassword = hashString(plainTxtPassword);
 		
-		host = getExternalIp();
-		clients = new ArrayList<Client>();
-		messageCache = new ArrayList<String>();
+		host = config.externalIp;
+		clients = new ClientRegistry();
+		admission = new AdmissionController(config, clients, metrics);
+		commands = registerCommands();
+		rooms = new ConcurrentHashMap<String, Room>();
+		openHistory();
+		mainRoom = new Room(MAIN_ROOM, messageCache);
+		rooms.put(MAIN_ROOM, mainRoom);
 		
-		clientNumber = 0;
+		clientNumbers = new AtomicInteger();
 	}
 	
 	/**
@@ -61,6 +118,7 @@ public class BashTalkServer {
 	{
 		this(DEFAULT_PORT, "");
 		this.useTerminal = useTerminal;
+		config.useTerminal = useTerminal;
 	}
 	
 	/**
@@ -72,15 +130,503 @@ public class BashTalkServer {
 	}
 	
 	/**
-	 * Starts the BashTalkServer.
+	 * Set up the message history. With a log directory configured, the on-disk log is opened and the newest logged
+	 * messages are loaded back into the cache, so history survives a restart.
+	 */
+	private void openHistory()
+	{
+		if (config.logDir != null)
+			try
+			{
+				MessageLog log = new MessageLog(Paths.get(config.logDir), config.logSegmentBytes, config.logRetentionMillis, config.logRetentionBytes, config.logFlushMillis);
+				log.open();
+				
+				// Continue numbering where the log left off and restore the tail of it
+				messageCache = new MessageRing(config.historySize, config.historyBytes, log.nextSeq());
+				for (MessageLog.Record record : log.tail(config.historySize))
+					messageCache.restore(record.seq, record.msg);
+				
+				messageLog = log;
+				return;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				System.out.println("Could not open message log in " + config.logDir + ". History will not be saved.");
+			}
+		
+		messageCache = new MessageRing(config.historySize, config.historyBytes, 0);
+	}
+	
+	/**
+	 * Add a chat message to the history of a room and send it to the room's members. Only messages in the main room
+	 * are logged and numbered for clients to resume from; other rooms keep a short history in memory.
+	 * 
+	 * @param room
+	 *            - Room the message was sent to
+	 * @param msg
+	 *            - Message to be sent
+	 */
+	private void postMsg(Room room, String msg)
+	{
+		// Cache first so a client joining mid-broadcast sees the message one way or the other
+		if (room == mainRoom)
+			broadcastMsg(room, new OutboundMessage(cacheMsg(msg), msg));
+		else
+		{
+			room.history().add(msg);
+			broadcastMsg(room, new OutboundMessage(-1, msg));
+		}
+	}
+	
+	/**
+	 * Add a chat message to the history, and to the on-disk log if there is one.
+	 * 
+	 * @param msg
+	 *            - Message to be cached
+	 * @return Sequence number of the message
+	 */
+	private long cacheMsg(String msg)
+	{
+		long seq = messageCache.add(msg);
+		if (messageLog != null)
+			messageLog.append(seq, msg);
+		return seq;
+	}
+	
+	/**
+	 * Build the table of chat commands.
+	 * 
+	 * @return Commands understood by this server
+	 */
+	private CommandRegistry registerCommands()
+	{
+		CommandRegistry commands = new CommandRegistry();
+		
+		// Close the connection for this client
+		commands.register("/exit", 0, "/exit", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				client.close(true);
+				return false;
+			}
+		});
+		
+		// Clear the server's cache of stored messages (requires password)
+		// Messages on user's screens are preserved for now
+		commands.register("/clear_cache", 0, "/clear_cache", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(final Client client, ParsedMessage msg)
+			{
+				// Request, receieve, hash, and check password against stored hash
+				client.promptAndValidatePassword(new AuthAction() {
+					
+					@Override
+					public void run(boolean authenticated)
+					{
+						if (authenticated)
+						{
+							clearCache(client.room);
+							client.serverMsg("Cache cleared.");
+						}
+						else
+							client.serverMsg("Authentication failed.");
+					}
+				});
+				return true;
+			}
+		});
+		
+		// Send a private message to another online user
+		// Format: [time] <usr> /cmd <usr1> <msg>
+		commands.register("/pmsg", 1, "/pmsg <user> <message>", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				// Get client by username
+				String target = msg.arg(0);
+				Client c = getClient(target);
+				
+				if (c != null)
+				{
+					// Add "Private: " + timestamp + <sender@arg1> + message
+					String pmsg = "Private: " + msg.timestamp() + " <" + msg.sender() + "@" + target + "> " + msg.message();
+					
+					// Send back to sender and receiver
+					c.directMsg(pmsg);
+					client.directMsg(pmsg);
+				}
+				else if (cluster != null && cluster.hasUser(target))
+				{
+					// The receiver is on another node
+					String pmsg = "Private: " + msg.timestamp() + " <" + msg.sender() + "@" + target + "> " + msg.message();
+					cluster.send(Cluster.PMSG, target, msg.sender(), pmsg);
+					client.directMsg(pmsg);
+				}
+				else
+					client.serverMsg("\"" + target + "\" is not online.");
+				
+				return true;
+			}
+		});
+		
+		// Return the list of users online
+		commands.register("/users", 0, "/users", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				client.directMsg(getOnlineUsers());
+				return true;
+			}
+		});
+		
+		// Prints all possible commands available
+		commands.register("/help", 0, "/help", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				client.directMsg(HELP_TEXT);
+				return true;
+			}
+		});
+		
+		// Mute the specified user
+		commands.register("/mute", 1, "/mute <user>", false, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				setMuted(client, msg.arg(0), true);
+				return true;
+			}
+		});
+		
+		// Unmute the specified user
+		commands.register("/unmute", 1, "/unmute <user>", false, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				setMuted(client, msg.arg(0), false);
+				return true;
+			}
+		});
+		
+		// Join a room, creating it if needed, and talk in it from now on
+		commands.register("/join", 1, "/join <room>", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				String name = roomName(msg.arg(0));
+				if (name != null)
+					joinRoom(client, name);
+				else
+					client.serverMsg("Room names are up to 32 letters, digits, '-' or '_'.");
+				return true;
+			}
+		});
+		
+		// Leave the named room, or the current one
+		commands.register("/part", 0, "/part [room]", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				Room current = client.room;
+				String name = msg.message().isEmpty() ? (current != null ? current.name : MAIN_ROOM) : roomName(msg.message());
+				Room room = name == null ? null : rooms.get(name);
+				
+				if (room != null && room.contains(client))
+					partRoom(client, room, true);
+				else
+					client.serverMsg("You are not in " + (name != null ? name : msg.message()) + ".");
+				return true;
+			}
+		});
+		
+		// List the open rooms
+		commands.register("/rooms", 0, "/rooms", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(Client client, ParsedMessage msg)
+			{
+				client.directMsg(getRooms(client));
+				return true;
+			}
+		});
+		
+		// Ban the specified user from the server (requires password)
+		commands.register("/ban", 1, "/ban <user>", false, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(final Client client, ParsedMessage msg)
+			{
+				final String target = msg.arg(0);
+				client.promptAndValidatePassword(new AuthAction() {
+					
+					@Override
+					public void run(boolean authenticated)
+					{
+						// Get the targeted client
+						Client c = getClient(target);
+						boolean remote = c == null && cluster != null && cluster.hasUser(target);
+						
+						if (authenticated && (c != null || remote))
+						{
+							
+							// Ban the user, here or on the node it is connected to
+							if (c != null)
+								ban(c);
+							else
+								cluster.send(Cluster.BAN, target, client.getUsername(), "");
+							
+							// Notify the group
+							announce(getTimestamp() + " <" + target + "> was banned from the server.");
+							
+						}
+						else if (c == null && !remote)
+							client.serverMsg("\"" + target + "\" is not online.");
+						else
+							client.serverMsg("Authentication failed.");
+					}
+				});
+				return true;
+			}
+		});
+		
+		// Print the server's metrics (requires password)
+		commands.register("/stats", 0, "/stats", true, new CommandRegistry.Handler() {
+			
+			@Override
+			public boolean run(final Client client, ParsedMessage msg)
+			{
+				client.promptAndValidatePassword(new AuthAction() {
+					
+					@Override
+					public void run(boolean authenticated)
+					{
+						if (authenticated)
+							client.directMsg("\nServer Stats (latencies in microseconds):" + metrics.report());
+						else
+							client.serverMsg("Authentication failed.");
+					}
+				});
+				return true;
+			}
+		});
+		
+		return commands;
+	}
+	
+	/**
+	 * Mute or unmute a user in the current room of the client asking, and notify the room.
+	 * 
+	 * @param client
+	 *            - Client that sent the command
+	 * @param target
+	 *            - Username of the user to mute or unmute
+	 * @param state
+	 *            - Mute status to set (true: muted / false: unmuted)
+	 */
+	private void setMuted(Client client, String target, boolean state)
+	{
+		// Get the targeted client, which may be on another node
+		boolean online = getClient(target) != null || cluster != null && cluster.hasUser(target);
+		Room room = client.room;
+		
+		if (online && room != null)
+		{
+			
+			// Mute or unmute the user
+			room.setMuted(target, state);
+			
+			// Notify the room, on every node
+			String notice = getTimestamp() + " <" + client.getUsername() + "> " + (state ? "muted" : "unmuted") + " <" + target + ">" + (room == mainRoom ? "." : " in " + room.name + ".");
+			broadcastMsg(room, new OutboundMessage(-1, notice));
+			if (cluster != null)
+				cluster.send(state ? Cluster.MUTE : Cluster.UNMUTE, room.name, target, notice);
+			
+		}
+		else if (!online)
+			client.serverMsg("\"" + target + "\" is not online.");
+		else
+			client.serverMsg("You are not in a room.");
+	}
+	
+	/**
+	 * Check a room name given by a user and put it in canonical form.
+	 * 
+	 * @param name
+	 *            - Room name, with or without its leading '#'
+	 * @return Name with a leading '#', or null if it is not a valid name
+	 */
+	private static String roomName(String name)
+	{
+		if (name.startsWith("#"))
+			name = name.substring(1);
+		
+		return name.matches("[A-Za-z0-9_-]{1,32}") ? "#" + name : null;
+	}
+	
+	/**
+	 * Subscribe a client to a room, creating the room if needed, and make it the room the client talks in. A client
+	 * new to the room is sent its history, and the room is told it joined.
+	 * 
+	 * @param client
+	 *            - Client joining
+	 * @param name
+	 *            - Canonical room name
+	 */
+	private void joinRoom(Client client, String name)
+	{
+		Room room;
+		boolean added;
+		
+		// Creating a room and removing an empty one must not interleave
+		synchronized (rooms)
+		{
+			room = rooms.get(name);
+			if (room == null)
+			{
+				room = new Room(name, new MessageRing(config.historySize, config.historyBytes, 0));
+				rooms.put(name, room);
+			}
+			added = room.add(client);
+		}
+		
+		client.joined.add(room);
+		client.room = room;
+		
+		if (!added)
+		{
+			client.serverMsg("Now talking in " + name + ".");
+			return;
+		}
+		
+		// Only the main room's messages carry sequence numbers
+		for (MessageRing.Entry entry : room.history().entries())
+			if (room == mainRoom)
+				client.sequencedMsg(entry.seq, entry.msg);
+			else
+				client.directMsg(entry.msg);
+		client.directMsg("-- End of " + name + " History --");
+		
+		broadcastMsg(room, new OutboundMessage(-1, getTimestamp() + " <" + client.getUsername() + "> joined " + name + "."));
+	}
+	
+	/**
+	 * Unsubscribe a client from a room. Empty rooms other than the main room are removed. If the client was talking
+	 * in the room, it goes on talking in another room it is in, if any.
+	 * 
+	 * @param client
+	 *            - Client leaving
+	 * @param room
+	 *            - Room to leave
+	 * @param notify
+	 *            - Option to tell the room
+	 */
+	private void partRoom(Client client, Room room, boolean notify)
+	{
+		if (notify)
+			broadcastMsg(room, new OutboundMessage(-1, getTimestamp() + " <" + client.getUsername() + "> left " + room.name + "."));
+		
+		synchronized (rooms)
+		{
+			room.remove(client);
+			if (room != mainRoom && room.size() == 0)
+				rooms.remove(room.name);
+		}
+		
+		client.joined.remove(room);
+		if (client.room == room)
+		{
+			Iterator<Room> others = client.joined.iterator();
+			client.room = others.hasNext() ? others.next() : null;
+			
+			if (notify)
+				client.serverMsg(client.room != null ? "Now talking in " + client.room.name + "." : "You are not in any room. Use /join to enter one.");
+		}
+	}
+	
+	/**
+	 * Get a formatted list of rooms and their sizes.
+	 * 
+	 * @param client
+	 *            - Client asking, whose current room is marked
+	 * @return List of rooms
+	 */
+	private String getRooms(Client client)
+	{
+		TreeMap<String, Room> sorted = new TreeMap<String, Room>(rooms);
+		
+		StringBuilder list = new StringBuilder("\nRooms: [");
+		for (Room room : sorted.values())
+		{
+			list.append(room.name).append(" (").append(room.size()).append(')');
+			if (room == client.room)
+				list.append('*');
+			list.append(", ");
+		}
+		
+		// Drop the trailing separator
+		list.setLength(list.length() - 2);
+		return list.append(']').toString();
+	}
+	
+	/**
+	 * Build the default settings for a port.
+	 * 
+	 * @param port
+	 *            - Port on which to listen for connections
+	 * @return Default settings using the port
+	 */
+	private static ServerConfig configForPort(int port)
+	{
+		ServerConfig config = new ServerConfig();
+		config.port = port;
+		return config;
+	}
+	
+	/**
+	 * Starts the BashTalkServer. In daemon mode nothing waits on the administrator or the network, so the server is
+	 * listening within moments of starting.
 	 */
 	public void startServer()
+	{
+		lookUpExternalIp();
+		
+		if (config.daemon)
+		{
+			loadPasswordHash();
+			log("BashTalk server starting on port " + port + ".");
+		}
+		else
+			promptForPassword();
+		
+		startMetrics();
+		timers.start("timer-wheel");
+		startCluster();
+		
+		acceptConnections();
+	}
+	
+	/**
+	 * Show the server's addresses and have the administrator choose a password, through dialogs or the terminal.
+	 */
+	private void promptForPassword()
 	{
 		
 		clearOutput();
 		System.out.println("-- BashTalk Server --");
 		System.out.println("Local: " + getLocalIp() + "[" + port + "]");
-		System.out.println("External: " + host + "[" + port + "]");
+		System.out.println("External: " + externalHost() + "[" + port + "]");
 		System.out.println("");
 		
 		// Prompt user to set admin password
@@ -125,7 +671,7 @@ public class BashTalkServer {
 					JOptionPane.showMessageDialog(null, "Passwords did not match. Please try again.");
 				else
 					System.out.println("Passwords did not match. Please try again.");
-				
+			
 		} while (!temp1.equals(temp2));
 		
 		// Store hashed user password
@@ -140,77 +686,603 @@ public class BashTalkServer {
 			clearOutput();
 			System.out.println("-- BashTalk Server --");
 			System.out.println("Local: " + getLocalIp() + "[" + port + "]");
-			System.out.println("External: " + host + "[" + port + "]");
+			System.out.println("External: " + externalHost() + "[" + port + "]");
 			System.out.println("");
 		}
-		
-		ServerSocket listener = null;
-		try
-		{
-			listener = new ServerSocket(port);
-			
-			while (true)
-				if (clients.size() < MAX_CLIENTS)
-				{
-					clients.add(new Client(clientNumber++, listener.accept()));
-					clients.get(clients.size() - 1).start();
-				}
-				else
-				{
-					Socket socket = listener.accept();
-					PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-					out.println("Maximum number of clients reached.");
-					// Client closes self
-				}
-		}
-		catch (IOException e)
-		{
-			e.printStackTrace();
-		}
-		finally
-		{
-			broadcastMsg("shutdown");
+	}
+	
+	/**
+	 * Read the administrator password hash for daemon mode, from the configured file or else the environment. The
+	 * hash is the hex SHA-256 of the password, as printed by sha256sum. Without one, admin commands always fail.
+	 */
+	private void loadPasswordHash()
+	{
+		String hash = null;
+		if (config.passwordHashFile != null)
 			try
 			{
-				listener.close();
+				hash = new String(Files.readAllBytes(Paths.get(config.passwordHashFile)));
 			}
 			catch (IOException e)
 			{
-				e.printStackTrace();
+				log("Could not read password hash file " + config.passwordHashFile + ": " + e);
 			}
+		else
+			hash = System.getenv(ServerConfig.PASSWORD_HASH_ENV);
+		
+		// Keep only the hash from sha256sum output such as "<hash>  -"
+		hash = hash != null ? hash.trim().split("\\s+")[0] : "";
+		
+		if (hash.matches("[0-9a-fA-F]{64}"))
+			hashedPassword = hash.toLowerCase();
+		else
+		{
+			hashedPassword = null;
+			log("No administrator password hash in " + (config.passwordHashFile != null ? config.passwordHashFile : ServerConfig.PASSWORD_HASH_ENV) + ". Admin commands are disabled.");
 		}
 	}
 	
 	/**
-	 * Set the UI to the correct font based on the scale and the resolution
+	 * Read the secret the nodes of a cluster share, from the configured file or else the environment.
+	 * 
+	 * @return Secret, or null if there is none
 	 */
-	private static void setUIHints()
+	private String loadClusterSecret()
 	{
-		// Calculates scaling unique to each screen resolution
-		GraphicsDevice gd = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
-		int scale = (gd.getDisplayMode().getHeight() + gd.getDisplayMode().getWidth()) / 200;
-		
-		UIManager.put("OptionPane.messageFont", new Font("Consolas", Font.PLAIN, (int) (scale * 1.5)));
+		String secret = null;
+		if (config.clusterSecretFile != null)
+			try
+			{
+				secret = new String(Files.readAllBytes(Paths.get(config.clusterSecretFile)));
+			}
+			catch (IOException e)
+			{
+				log("Could not read cluster secret file " + config.clusterSecretFile + ": " + e);
+			}
+		else
+			secret = System.getenv(ServerConfig.CLUSTER_SECRET_ENV);
+		
+		return secret != null && !secret.trim().isEmpty() ? secret.trim() : null;
+	}
+	
+	/**
+	 * Look up the external address on a background thread, unless it was given or the lookup is turned off. The
+	 * lookup needs the network, so startup never waits for it.
+	 */
+	private void lookUpExternalIp()
+	{
+		if (host != null || !config.lookUpExternalIp)
+			return;
+		
+		Thread lookup = new Thread(new Runnable() {
+			
+			@Override
+			public void run()
+			{
+				String ip = getExternalIp();
+				if (ip != null)
+					host = ip;
+				
+				if (config.daemon)
+					log(ip != null ? "External: " + ip + "[" + port + "]" : "Could not look up the external address.");
+			}
+		}, "external-ip");
+		lookup.setDaemon(true);
+		lookup.start();
+	}
+	
+	/**
+	 * Describe the external address for the startup screen.
+	 * 
+	 * @return External address, or why it is not known
+	 */
+	private String externalHost()
+	{
+		String known = host;
+		if (known != null)
+			return known;
+		return config.lookUpExternalIp ? "(looking up)" : "(unknown)";
+	}
+	
+	/**
+	 * Add gauges for the levels worth watching and publish the metrics through JMX.
+	 */
+	private void startMetrics()
+	{
+		metrics.gauge("clients.online", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				return clients.size();
+			}
+		});
+		
+		metrics.gauge("clients.handshaking", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				return admission.handshakes();
+			}
+		});
+		
+		metrics.gauge("clients.remote", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				return cluster != null ? cluster.remoteUsers().size() : 0;
+			}
+		});
+		
+		metrics.gauge("timers.pending", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				return timers.size();
+			}
+		});
+		
+		metrics.gauge("rooms", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				return rooms.size();
+			}
+		});
+		
+		metrics.gauge("cache.messages", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				return messageCache.entries().size();
+			}
+		});
+		
+		metrics.gauge("cache.bytes", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				long bytes = 0;
+				for (MessageRing.Entry entry : messageCache.entries())
+					bytes += entry.msg.length();
+				return bytes;
+			}
+		});
+		
+		// Outbound queues: all of them together, and the deepest one, which is the client closest to falling behind
+		metrics.gauge("outbound.queued.messages", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				long queued = 0;
+				for (Client c : clients.snapshot())
+					queued += c.outbound.size();
+				return queued;
+			}
+		});
+		
+		metrics.gauge("outbound.queued.bytes", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				long queued = 0;
+				for (Client c : clients.snapshot())
+					queued += c.outbound.bytes();
+				return queued;
+			}
+		});
+		
+		metrics.gauge("outbound.queued.deepest", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				long deepest = 0;
+				for (Client c : clients.snapshot())
+					deepest = Math.max(deepest, c.outbound.size());
+				return deepest;
+			}
+		});
+		
+		metrics.gauge("io.tasks.pending", new LongSupplier() {
+			
+			@Override
+			public long getAsLong()
+			{
+				long pending = 0;
+				if (loops != null)
+					for (SelectorLoop loop : loops)
+						pending += loop.pendingTasks();
+				return pending;
+			}
+		});
+		
+		try
+		{
+			metrics.register("bashtalk:type=Server,port=" + port);
+		}
+		catch (Exception e)
+		{
+			log("Could not publish metrics through JMX: " + e);
+		}
+	}
+	
+	/**
+	 * Join the cluster, if one is configured. Events from peers are applied as if they had happened here, except
+	 * that they are not sent on again.
+	 */
+	private void startCluster()
+	{
+		if (config.clusterPort == 0 && config.peers == null)
+			return;
+		
+		String node = config.nodeName != null ? config.nodeName : "node-" + port;
+		InetSocketAddress address = new InetSocketAddress(config.clusterHost, config.clusterPort);
+		List<InetSocketAddress> peers = config.peers != null ? Cluster.parsePeers(config.peers) : new ArrayList<InetSocketAddress>();
+		
+		Cluster cluster = new Cluster(node, address, peers, config, loadClusterSecret(), new Cluster.Handler() {
+			
+			@Override
+			public void received(String event, String arg, String sender, String body)
+			{
+				switch (event)
+				{
+					case Cluster.CHAT:
+						// Rooms only exist on the nodes where someone is in them
+						Room room = rooms.get(arg);
+						if (room != null)
+							postMsg(room, body);
+						break;
+					
+					case Cluster.NOTICE:
+						broadcastMsg(body);
+						break;
+					
+					case Cluster.PMSG:
+						Client recipient = getClient(arg);
+						if (recipient != null)
+							recipient.directMsg(body);
+						break;
+					
+					case Cluster.MUTE:
+					case Cluster.UNMUTE:
+						Room scope = rooms.get(arg);
+						if (scope != null)
+						{
+							scope.setMuted(sender, event.equals(Cluster.MUTE));
+							broadcastMsg(scope, new OutboundMessage(-1, body));
+						}
+						break;
+					
+					case Cluster.BAN:
+						Client banned = getClient(arg);
+						if (banned != null)
+						{
+							log(sender + " banned " + arg + " from another node.");
+							ban(banned);
+						}
+						break;
+				}
+			}
+			
+			@Override
+			public void peerUp(String node)
+			{
+				log("Linked to cluster node " + node + ".");
+			}
+			
+			@Override
+			public void peerDown(String node, List<String> users)
+			{
+				log("Lost cluster node " + node + ".");
+				for (String user : users)
+					broadcastMsg(user + " has left the server.");
+			}
+			
+			@Override
+			public boolean isLocal(String username)
+			{
+				return getClient(username) != null;
+			}
+			
+			@Override
+			public void kick(String username, String node)
+			{
+				Client c = getClient(username);
+				if (c == null)
+					return;
+				
+				metrics.increment("logins.kicked");
+				log(username + " also logged in on node " + node + ", which keeps the user. Disconnecting " + username + " here.");
+				dismiss(c, getTimestamp() + " <# server #> You are logged in on another server. Disconnecting.");
+			}
+			
+			@Override
+			public List<String> localUsers()
+			{
+				List<String> users = new ArrayList<String>();
+				for (Client c : clients.snapshot())
+					users.add(c.getUsername());
+				return users;
+			}
+		});
+		
+		try
+		{
+			cluster.start();
+			this.cluster = cluster;
+			log("Cluster node " + node + " listening for peers on " + config.clusterHost + "[" + config.clusterPort + "].");
+		}
+		catch (IOException e)
+		{
+			System.out.println("Could not open cluster port " + config.clusterPort + ": " + e.getMessage() + ". Running alone.");
+		}
+	}
+	
+	/**
+	 * Listen on every configured address and pass each accepted connection to the I/O workers. Acceptors only decide
+	 * whether to admit a connection; the client is created and registered by the worker that will serve it, so the
+	 * acceptors go straight back to accepting. Returns once every listener has stopped.
+	 */
+	private void acceptConnections()
+	{
+		List<Listener> listeners = new ArrayList<Listener>();
+		try
+		{
+			Listener.Handler handler = config.ioMode == ServerConfig.IoMode.NIO ? handOffToLoops() : handOffToThreads();
+			
+			List<InetSocketAddress> addresses = config.listen;
+			if (addresses.isEmpty())
+				addresses = Collections.singletonList(new InetSocketAddress(port));
+			
+			for (InetSocketAddress address : addresses)
+			{
+				Listener listener = new Listener(address, config.acceptors);
+				listeners.add(listener);
+				listener.open(config.acceptBacklog);
+				if (config.daemon)
+					log("Listening on " + listener + ".");
+			}
+			
+			for (Listener listener : listeners)
+				listener.start(handler);
+			for (Listener listener : listeners)
+				listener.join();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (InterruptedException e)
+		{
+			// Shutting down
+		}
+		finally
+		{
+			broadcastMsg("shutdown");
+			for (Listener listener : listeners)
+				listener.close();
+		}
+	}
+	
+	/**
+	 * Give each admitted client its own handler thread, doing blocking reads. The channels stay in blocking mode;
+	 * they are only used so history can be sent straight from the log files.
+	 * 
+	 * @return Handler for accepted connections
+	 */
+	private Listener.Handler handOffToThreads()
+	{
+		final Executor handlers = createHandlerExecutor();
+		
+		return new Listener.Handler() {
+			
+			@Override
+			public void accepted(final SocketChannel channel)
+			{
+				if (!admission.admit(channel))
+					return;
+				
+				handlers.execute(new Runnable() {
+					
+					@Override
+					public void run()
+					{
+						new SocketClient(clientNumbers.getAndIncrement(), channel, handlers).run();
+					}
+				});
+			}
+		};
+	}
+	
+	/**
+	 * Create the executor that runs blocking client handlers. Every handler gets a thread of its own, either a
+	 * platform thread or, in virtual thread mode, a virtual thread.
+	 * 
+	 * @return Executor starting one thread per handler
+	 */
+	private Executor createHandlerExecutor()
+	{
+		if (config.ioMode == ServerConfig.IoMode.VIRTUAL)
+			try
+			{
+				// Looked up reflectively so the server still builds and runs on releases without virtual threads
+				return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				log("Virtual threads require Java 21 or newer. Using platform threads.");
+			}
+		
+		return new Executor() {
+			
+			@Override
+			public void execute(Runnable handler)
+			{
+				new Thread(handler).start();
+			}
+		};
+	}
+	
+	/**
+	 * Start the selector loops and spread admitted clients across them.
+	 * 
+	 * @return Handler for accepted connections
+	 * @throws IOException
+	 *             If a loop cannot be opened
+	 */
+	private Listener.Handler handOffToLoops() throws IOException
+	{
+		loops = new SelectorLoop[config.ioLoops];
+		for (int i = 0; i < loops.length; i++)
+		{
+			loops[i] = new SelectorLoop();
+			loops[i].start("io-loop-" + i);
+		}
+		
+		final AtomicInteger nextLoop = new AtomicInteger();
+		
+		return new Listener.Handler() {
+			
+			@Override
+			public void accepted(final SocketChannel channel)
+			{
+				if (!admission.admit(channel))
+					return;
+				
+				// Hand out loops round robin; the loop itself creates and registers the client
+				final SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+				loop.execute(new Runnable() {
+					
+					@Override
+					public void run()
+					{
+						new ChannelClient(clientNumbers.getAndIncrement(), channel, loop).start();
+					}
+				});
+			}
+		};
+	}
+	
+	/**
+	 * Set the UI to the correct font based on the scale and the resolution
+	 */
+	private static void setUIHints()
+	{
+		// Calculates scaling unique to each screen resolution
+		GraphicsDevice gd = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice();
+		int scale = (gd.getDisplayMode().getHeight() + gd.getDisplayMode().getWidth()) / 200;
+		
+		UIManager.put("OptionPane.messageFont", new Font("Consolas", Font.PLAIN, (int) (scale * 1.5)));
 		UIManager.put("OptionPane.buttonFont", new Font("Consolas", Font.BOLD, (int) (scale * 1.5)));
 	}
 	
 	/**
 	 * Client class used to store information for and communicate with each client that connects to the server.
+	 * The chat protocol lives here; subclasses supply the transport.
 	 */
-	public class Client extends Thread {
+	public abstract class Client {
 		
 		public int clientNumber;
-		public String username;
-		private BufferedReader in;
-		private PrintWriter out;
-		private Socket socket;
-		private boolean muted;
+		public volatile String username;
+		private final AtomicReference<AuthAction> pendingAuth;
+		private final AtomicBoolean closed;
+		
+		// Set until the client logs in or goes away, while it counts against the handshake limit
+		private final AtomicBoolean handshaking;
+		
+		// Deadline for the reply the client owes: a username while logging in, or a password after a prompt
+		private volatile TimerWheel.Timeout deadline;
+		protected final OutboundQueue<Object> outbound;
+		
+		// Reused for every line, since a client's lines are handled one at a time
+		private final ParsedMessage parsed;
+		
+		// Set while messages are being dropped, so falling behind is logged once per episode
+		private volatile boolean behind;
+		
+		// Set by a /hello from clients that track sequence numbers
+		private volatile boolean sequenced;
+		private long resumeAfter;
+		
+		// Wire format negotiated by the /hello, applied to each message as it is queued
+		private volatile OutboundMessage.Format format;
+		
+		// Rooms the client is in, and the one its messages go to
+		private final Set<Room> joined;
+		private volatile Room room;
+		
+		// Set once the client is banned or kicked; nothing more it sends is handled while it waits to be disconnected
+		private volatile boolean dismissed;
+		
+		// Flood control: one bucket for chat and one per command, null where the limit is off. Only touched by the
+		// thread handling this client's lines
+		private final TokenBucket chatBucket;
+		private final Map<String, TokenBucket> commandBuckets;
+		private long floodNoticeAt;
+		
+		// Heartbeats: when the client was last heard from at all and other than a pong, and when the unanswered ping
+		// went out (0 if none). Only clients that offer "ping" in their /hello are pinged
+		private volatile boolean pingable;
+		private volatile long heardAt;
+		private volatile long activeAt;
+		private volatile long pingedAt;
+		private volatile TimerWheel.Timeout heartbeat;
+		private final Runnable heartbeatCheck;
+		
+		/**
+		 * Create a client that was not admitted through the accept loop, and so holds no handshake place.
+		 * 
+		 * @param clientNumber
+		 *            - Number identifying the client
+		 */
+		public Client(int clientNumber)
+		{
+			this(clientNumber, false);
+		}
 		
-		public Client(int clientNumber, Socket socket)
+		/**
+		 * @param clientNumber
+		 *            - Number identifying the client
+		 * @param admitted
+		 *            - Whether the client holds a handshake place, given back once it logs in or goes away
+		 */
+		public Client(int clientNumber, boolean admitted)
 		{
 			this.clientNumber = clientNumber;
-			this.socket = socket;
-			muted = false;
+			joined = ConcurrentHashMap.newKeySet();
+			dismissed = false;
+			chatBucket = TokenBucket.of(config.chatLimit);
+			commandBuckets = new HashMap<String, TokenBucket>();
+			floodNoticeAt = 0;
+			pingable = false;
+			heardAt = activeAt = System.nanoTime();
+			pingedAt = 0;
+			heartbeatCheck = new Runnable() {
+				
+				@Override
+				public void run()
+				{
+					checkHeartbeat();
+				}
+			};
+			closed = new AtomicBoolean(false);
+			pendingAuth = new AtomicReference<AuthAction>();
+			handshaking = new AtomicBoolean(admitted);
+			parsed = new ParsedMessage();
+			outbound = new OutboundQueue<Object>(config.maxQueuedMessages, config.maxQueuedBytes, config.maxLagMillis);
+			behind = false;
+			sequenced = false;
+			resumeAfter = -1;
+			format = OutboundMessage.Format.TEXT;
 		}
 		
 		/**
@@ -224,378 +1296,1002 @@ public class BashTalkServer {
 		}
 		
 		/**
-		 * Returns the mute status of this client.
+		 * Returns the mute status of this client in the room it is talking in.
 		 * 
 		 * @return Mute status of client (true: muted / false: unmuted)
 		 */
 		public boolean getMuted()
 		{
-			return muted;
+			Room current = room;
+			return current != null && current.isMuted(username);
 		}
 		
 		/**
-		 * Sets the mute status of this client.
+		 * Sets the mute status of this client in the room it is talking in.
 		 * 
 		 * @param state
 		 *            - Mute status of client (true: muted / false: unmuted)
 		 */
 		public void setMuted(boolean state)
 		{
-			muted = state;
+			Room current = room;
+			if (current != null)
+				current.setMuted(username, state);
 		}
 		
-		@Override
-		public void run()
+		/**
+		 * Send a message to only this client. The message is queued for the client's writer; if the client has fallen
+		 * too far behind, the server's slow consumer policy decides what happens instead.
+		 * 
+		 * @param msg
+		 *            - Message to be sent
+		 */
+		public void directMsg(String msg)
+		{
+			send(new OutboundMessage(-1, msg));
+		}
+		
+		/**
+		 * Send a cached chat message to only this client, stamped with its sequence number if the client asked for
+		 * them.
+		 * 
+		 * @param seq
+		 *            - Sequence number of the message
+		 * @param msg
+		 *            - Message to be sent
+		 */
+		public void sequencedMsg(long seq, String msg)
+		{
+			send(new OutboundMessage(seq, msg));
+		}
+		
+		/**
+		 * Queue a message for this client's writer, applying the slow consumer policy if it does not fit. The message
+		 * is encoded in this client's wire format, reusing the bytes of any other client with the same format.
+		 * 
+		 * @param msg
+		 *            - Message to be sent
+		 */
+		void send(OutboundMessage msg)
 		{
+			if (closed.get())
+				return;
+			
+			byte[] bytes;
 			try
 			{
-				// Initialize streams
-				in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				out = new PrintWriter(socket.getOutputStream(), true);
+				bytes = msg.encode(format);
+			}
+			catch (IOException e)
+			{
+				log("Could not send a message to " + describe() + ": " + e.getMessage());
+				return;
+			}
+			
+			offer(bytes, bytes.length);
+		}
+		
+		/**
+		 * Queue a run of history to be copied to this client straight from the message log. A region holds no memory,
+		 * so it only counts against the queue's message limit.
+		 * 
+		 * @param region
+		 *            - Messages stored in this client's wire format
+		 */
+		void send(MessageLog.Region region)
+		{
+			if (closed.get())
+				return;
+			
+			metrics.add("history.transferred.bytes", region.length);
+			offer(region, 0);
+		}
+		
+		/**
+		 * Queue an encoded message or region, applying the slow consumer policy if it does not fit.
+		 */
+		private void offer(Object item, int size)
+		{
+			if (outbound.offer(item, size))
+			{
+				behind = false;
+				queued();
+			}
+			else
+				fellBehind(item, size);
+		}
+		
+		/**
+		 * Apply the slow consumer policy to a message that did not fit in the outbound queue.
+		 * 
+		 * @param item
+		 *            - Encoded message or region that did not fit
+		 * @param size
+		 *            - Size it counts for in the queue
+		 */
+		private void fellBehind(Object item, int size)
+		{
+			switch (config.slowConsumerPolicy)
+			{
+				case DROP:
+					metrics.increment("outbound.dropped");
+					if (!behind)
+						log(describe() + " is falling behind. Dropping new messages.");
+					behind = true;
+					break;
+				
+				case COMPACT:
+					// Discard the oldest messages to make room for the newest
+					metrics.add("outbound.compacted", outbound.compact(size));
+					if (outbound.offer(item, size))
+						queued();
+					else
+						metrics.increment("outbound.dropped");
+					
+					if (!behind)
+						log(describe() + " is falling behind. Dropping old messages.");
+					behind = true;
+					break;
 				
-				// Handle username
-				while (true)
+				case DISCONNECT:
+					metrics.increment("clients.evicted");
+					log(describe() + " fell too far behind and was disconnected.");
+					close(true);
+					break;
+			}
+		}
+		
+		/**
+		 * Identify this client in the server log.
+		 * 
+		 * @return Username, or client number before login
+		 */
+		private String describe()
+		{
+			return username != null ? username : "Client #" + clientNumber;
+		}
+		
+		/**
+		 * Check whether this client switched to the binary protocol.
+		 * 
+		 * @return Whether messages from the client arrive as frames
+		 */
+		public boolean framed()
+		{
+			return format == OutboundMessage.Format.FRAME;
+		}
+		
+		/**
+		 * Handle one frame received from this client by turning it back into the line the text protocol would have
+		 * carried. A sender or command with a line break in it could not have come from that line, so the frame is
+		 * malformed and the client is disconnected.
+		 * 
+		 * @param frame
+		 *            - Frame received from the client
+		 * @return Whether the connection is still open
+		 */
+		protected boolean handleFrame(Frame frame)
+		{
+			if (OutboundMessage.hasLineBreak(frame.sender) || OutboundMessage.hasLineBreak(frame.command))
+			{
+				metrics.increment("frames.rejected");
+				log(describe() + " sent a malformed frame and was disconnected.");
+				close(false);
+				return false;
+			}
+			
+			if (frame.type != Frame.TYPE_CHAT)
+				return handleLine(frame.body);
+			
+			StringBuilder line = new StringBuilder();
+			line.append(getTimestamp(frame.time)).append(" <").append(frame.sender).append("> ");
+			if (!frame.command.isEmpty())
+			{
+				line.append(frame.command);
+				if (!frame.body.isEmpty())
+					line.append(' ');
+			}
+			line.append(frame.body);
+			
+			return handleLine(line.toString());
+		}
+		
+		/**
+		 * Record a batch of queued messages written to this client.
+		 * 
+		 * @param messages
+		 *            - Number of messages written
+		 * @param writes
+		 *            - Number of writes it took
+		 * @param bytes
+		 *            - Number of bytes written
+		 */
+		public void wrote(int messages, int writes, long bytes)
+		{
+			metrics.add("outbound.messages", messages);
+			metrics.add("outbound.writes", writes);
+			metrics.add("outbound.bytes", bytes);
+			if (messages > writes)
+				metrics.add("outbound.writes.saved", messages - writes);
+		}
+		
+		/**
+		 * Called after a message joins the outbound queue, so the transport can schedule a write.
+		 */
+		protected abstract void queued();
+		
+		/**
+		 * Release the connection resources of this client.
+		 * 
+		 * @throws IOException
+		 *             If the connection cannot be closed
+		 */
+		protected abstract void closeTransport() throws IOException;
+		
+		/**
+		 * Begin the handshake by prompting for a username. A client that has not logged in by the handshake timeout
+		 * is disconnected.
+		 */
+		protected void connected()
+		{
+			deadline = timers.schedule(new Runnable() {
+				
+				@Override
+				public void run()
 				{
-					directMsg("Please enter a valid username: ");
-					String tempUsername = in.readLine();
+					if (username != null || closed.get())
+						return;
 					
-					// Check if username is already online
-					boolean valid = true;
-					for (Client c : clients)
-						if (c.getUsername() != null && c.getUsername().equals(tempUsername))
-						{
-							valid = false;
-							break;
-						}
+					metrics.increment("handshakes.timedout");
+					log(describe() + " did not log in in time and was disconnected.");
+					close(false);
+				}
+			}, config.handshakeTimeoutMillis);
+			
+			directMsg("Please enter a valid username: ");
+		}
+		
+		/**
+		 * Leave the handshake stage, giving back the client's handshake place. Only the first call does anything.
+		 */
+		private void finishHandshake()
+		{
+			cancelDeadline();
+			if (handshaking.compareAndSet(true, false))
+				admission.release();
+		}
+		
+		private void cancelDeadline()
+		{
+			TimerWheel.Timeout current = deadline;
+			if (current != null)
+				current.cancel();
+		}
+		
+		/**
+		 * Handle one line received from this client.
+		 * 
+		 * @param msg
+		 *            - Line received from the client
+		 * @return Whether the connection is still open
+		 */
+		protected boolean handleLine(String msg)
+		{
+			if (dismissed)
+				return true;
+			
+			long received = System.nanoTime();
+			metrics.increment("inbound.messages");
+			metrics.add("inbound.chars", msg.length());
+			heardAt = received;
+			
+			// Answer to a heartbeat; proves the client is alive but not that anyone is there
+			if (msg.equals("/pong"))
+			{
+				metrics.increment("heartbeat.pongs");
+				return true;
+			}
+			activeAt = received;
+			
+			// Handle username
+			if (username == null)
+			{
+				if (msg.startsWith("/hello"))
+					handleHello(msg);
+				else
+					handleUsername(msg);
+				return true;
+			}
+			
+			// The previous command asked for a password, so this line is the reply
+			if (pendingAuth.get() != null)
+			{
+				// The deadline may have just taken the prompt back
+				AuthAction action = pendingAuth.getAndSet(null);
+				if (action != null)
+				{
+					cancelDeadline();
+					action.run(validatePassword(msg));
+					return true;
+				}
+			}
+			
+			// Ignore empty message with no formatting, since reload speed can exceed KeyListener refresh speed
+			if (msg.equals(""))
+				return true;
+			
+			parsed.parse(msg);
+			if (!withinLimit(parsed))
+				return true;
+			
+			Room target = room;
+			boolean muted = target != null && target.isMuted(username);
+			
+			if (!parsed.hasCommand())
+			{
+				// No special commands found. Send the message to the room (unless the user is muted there)
+				
+				if (target == null)
+					serverMsg("You are not in any room. Use /join to enter one.");
+				else if (!muted)
+				{
+					// Messages outside the main room are labeled with the room they went to
+					String text = target == mainRoom ? msg : parsed.timestamp() + " <" + parsed.sender() + "@" + target.name + "> " + parsed.message();
+					postMsg(target, text);
+					if (cluster != null)
+						cluster.send(Cluster.CHAT, target.name, username, text);
 					
-					// If the username is valid
-					if (valid && tempUsername.length() > 0)
+					metrics.increment("chat.messages");
+					metrics.histogram("latency.broadcast").recordSince(received);
+				}
+				else
+				{
+					metrics.increment("chat.muted");
+					serverMsg("You are currently muted.");
+				}
+				
+				return true;
+			}
+			
+			CommandRegistry.Command command = commands.get(parsed.command());
+			metrics.increment(command != null ? "commands." + command.name.substring(1) : "commands.invalid");
+			
+			if (muted && (command == null || !command.allowedWhileMuted))
+				serverMsg("You are currently muted.");
+			else if (command == null)
+				// Command not found; Send help text
+				directMsg("\tInvalid command: \"" + parsed.command() + "\"\n" + HELP_TEXT);
+			else if (!parsed.expectArgs(command.arity))
+				// Too few arguments or no command
+				directMsg("\nUsage: " + command.usage);
+			else
+				return command.handler.run(this, parsed);
+			
+			return true;
+		}
+		
+		/**
+		 * Apply flood control to a line. Chat messages share one bucket; each command has its own, and unknown
+		 * commands share one. A line over the limit is dropped, and the client is told so at most every few seconds.
+		 * 
+		 * @param line
+		 *            - Line received from the client
+		 * @return Whether the line may be handled
+		 */
+		private boolean withinLimit(ParsedMessage line)
+		{
+			TokenBucket bucket = chatBucket;
+			if (line.hasCommand())
+			{
+				CommandRegistry.Command command = commands.get(line.command());
+				String name = command != null ? command.name : "invalid";
+				
+				if (!commandBuckets.containsKey(name))
+				{
+					double[] limit = config.commandLimits.get(name);
+					commandBuckets.put(name, TokenBucket.of(limit != null ? limit : config.commandLimit));
+				}
+				bucket = commandBuckets.get(name);
+			}
+			
+			if (bucket == null || bucket.tryTake())
+				return true;
+			
+			metrics.increment(line.hasCommand() ? "flood.dropped.commands" : "flood.dropped.chat");
+			
+			long now = System.nanoTime();
+			if (floodNoticeAt == 0 || now - floodNoticeAt > FLOOD_NOTICE_NANOS)
+			{
+				floodNoticeAt = now;
+				metrics.increment("flood.notices");
+				log(describe() + " is sending too fast. Dropping messages.");
+				serverMsg("You are sending messages too fast. Some were not delivered.");
+			}
+			return false;
+		}
+		
+		/**
+		 * Keep an eye on a logged-in client. Every so often the heartbeat check runs on the timer wheel: a client that
+		 * has been silent for the heartbeat interval is sent "/ping", and one that does not answer in time, or that
+		 * has sent nothing but pongs for the idle timeout, is disconnected.
+		 */
+		private void watch()
+		{
+			if (config.idleTimeoutMillis > 0 || pingable && config.heartbeatMillis > 0)
+				heartbeat = timers.schedule(heartbeatCheck, pingable && config.heartbeatMillis > 0 ? config.heartbeatMillis : config.idleTimeoutMillis);
+		}
+		
+		/**
+		 * Ping or disconnect the client if it has been quiet too long, and schedule the next check. Runs on the timer
+		 * wheel thread, so it only queues messages and never blocks.
+		 */
+		private void checkHeartbeat()
+		{
+			if (closed.get())
+				return;
+			
+			long now = System.nanoTime();
+			long wait = Long.MAX_VALUE;
+			
+			if (config.idleTimeoutMillis > 0)
+			{
+				long idleUntil = activeAt + config.idleTimeoutMillis * 1000000L;
+				if (now - idleUntil >= 0)
+				{
+					metrics.increment("clients.reaped.idle");
+					log(describe() + " was idle too long and was disconnected.");
+					close(true);
+					return;
+				}
+				wait = idleUntil - now;
+			}
+			
+			if (pingable && config.heartbeatMillis > 0)
+			{
+				long pinged = pingedAt;
+				long timeout = config.heartbeatTimeoutMillis * 1000000L;
+				
+				if (pinged != 0 && heardAt - pinged < 0)
+				{
+					// Nothing has come back since the ping
+					if (now - pinged >= timeout)
 					{
-						
-						directMsg("Username approved. Welcome.");
-						log(tempUsername + " has joined the server as client #" + clientNumber + ".");
-						username = tempUsername;
-						
-						// Break out of error trap
-						break;
-						
+						metrics.increment("clients.reaped.unresponsive");
+						log(describe() + " stopped answering and was disconnected.");
+						close(true);
+						return;
 					}
-					else
-						directMsg("Username already online. Please try again.");
+					wait = Math.min(wait, pinged + timeout - now);
 				}
+				else if (now - heardAt >= config.heartbeatMillis * 1000000L)
+				{
+					pingedAt = now;
+					metrics.increment("heartbeat.pings");
+					directMsg("/ping");
+					wait = Math.min(wait, timeout);
+				}
+				else
+					wait = Math.min(wait, heardAt + config.heartbeatMillis * 1000000L - now);
+			}
+			
+			heartbeat = timers.schedule(heartbeatCheck, Math.max(1, wait / 1000000L));
+		}
+		
+		/**
+		 * Handle the optional greeting newer clients send before their username:
+		 * 
+		 * /hello seq=&lt;last sequence number seen&gt; proto=frame1 ping
+		 * 
+		 * After a greeting, cached messages are stamped with their sequence numbers and every other line with "@- ",
+		 * and a client that has seen messages before only gets the ones it missed. A client offering the binary protocol is answered with
+		 * "/hello frame1" and from then on both sides send frames. A client offering "ping" answers "/ping" with
+		 * "/pong", so it is sent heartbeats when it goes quiet.
+		 * 
+		 * @param msg
+		 *            - Greeting line
+		 */
+		private void handleHello(String msg)
+		{
+			sequenced = true;
+			boolean frames = false;
+			
+			for (String option : msg.split(" "))
+				if (option.equals("proto=" + Frame.PROTOCOL))
+					frames = true;
+				else if (option.equals("ping"))
+					pingable = true;
+				else if (option.startsWith("seq="))
+					try
+					{
+						resumeAfter = Long.parseLong(option.substring(4));
+					}
+					catch (NumberFormatException e)
+					{
+						resumeAfter = -1;
+					}
+			
+			// Messages are encoded as they are queued, so the answer goes out as a plain line and is the last one
+			// sent; the client sends nothing more until it has read it
+			if (frames)
+			{
+				directMsg("/hello " + Frame.PROTOCOL);
+				format = OutboundMessage.Format.FRAME;
+			}
+			else
+				format = OutboundMessage.Format.SEQUENCED_TEXT;
+		}
+		
+		/**
+		 * Send the message history. A client resuming after a known sequence number gets only the messages after it,
+		 * read from the on-disk log if they have already left the cache.
+		 * 
+		 * Messages already written to the log are copied to the socket straight from its files, which hold them as
+		 * lines and as frames. Lines stamped with sequence numbers are not stored, so those clients, and the live tail
+		 * not yet written, get buffered copies.
+		 */
+		private void replayHistory()
+		{
+			List<MessageRing.Entry> cached = messageCache.entries();
+			long oldestCached = cached.isEmpty() ? messageCache.nextSeq() : cached.get(0).seq;
+			long end = cached.isEmpty() ? oldestCached : cached.get(cached.size() - 1).seq + 1;
+			
+			long next = oldestCached;
+			if (sequenced && resumeAfter >= 0)
+			{
+				next = resumeAfter + 1;
 				
-				// Send cached messages
-				for (String msg : messageCache)
-					directMsg(msg);
-				directMsg("-- End of Message History --");
+				// Missed messages older than the cache can only come from the log, and only so many of them
+				if (next < oldestCached)
+					next = messageLog != null ? Math.max(next, oldestCached - config.maxReplay) : oldestCached;
+			}
+			
+			if (messageLog == null)
+			{
+				for (MessageRing.Entry entry : cached)
+					if (entry.seq >= next)
+						sequencedMsg(entry.seq, entry.msg);
+				return;
+			}
+			
+			try
+			{
+				if (format != OutboundMessage.Format.SEQUENCED_TEXT)
+					for (MessageLog.Region region : messageLog.regions(next, end, framed()))
+					{
+						send(region);
+						next = region.toSeq;
+					}
+				
+				if (next < oldestCached)
+					for (MessageLog.Record record : messageLog.read(next, (int) (oldestCached - next)))
+						if (record.seq < oldestCached)
+						{
+							sequencedMsg(record.seq, record.msg);
+							next = record.seq + 1;
+						}
+			}
+			catch (IOException e)
+			{
+				log("Error reading message log for " + describe() + ": " + e);
+			}
+			
+			for (MessageRing.Entry entry : cached)
+				if (entry.seq >= next)
+					sequencedMsg(entry.seq, entry.msg);
+		}
+		
+		/**
+		 * Validate a requested username and, once approved, finish joining the server.
+		 * 
+		 * @param tempUsername
+		 *            - Requested username
+		 */
+		private void handleUsername(String tempUsername)
+		{
+			long started = System.nanoTime();
+			
+			// Stamped lines start with '@', so a name that does could pass for one in a client's history
+			if (tempUsername.startsWith("@"))
+			{
+				metrics.increment("logins.rejected");
+				directMsg("Usernames may not start with @. Please try again.");
+				directMsg("Please enter a valid username: ");
+				return;
+			}
+			
+			// Claim the username unless it is already online, here or on another node, or the server is full
+			boolean remote = cluster != null && cluster.hasUser(tempUsername);
+			if (tempUsername.length() == 0 || remote || !clients.reserve(tempUsername, this, config.maxClients))
+			{
+				metrics.increment("logins.rejected");
 				
-				// Notify group of join
-				broadcastMsg(username + " has joined the server.");
+				// Filled up while this client was logging in; client closes self
+				if (clients.size() >= config.maxClients)
+				{
+					metrics.increment("logins.rejected.full");
+					directMsg("Maximum number of clients reached.");
+					directMsg(admission.retryHint());
+					return;
+				}
 				
-				// Send the list of online users
-				directMsg(getOnlineUsers());
+				directMsg("Username already online. Please try again.");
+				directMsg("Please enter a valid username: ");
+				return;
+			}
+			username = tempUsername;
+			
+			// A node that outranks this one may have logged in the same username meanwhile; its login wins
+			if (cluster != null && cluster.outranked(username))
+			{
+				metrics.increment("logins.rejected");
+				clients.remove(this);
+				username = null;
+				directMsg("Username already online. Please try again.");
+				directMsg("Please enter a valid username: ");
+				return;
+			}
+			
+			directMsg("Username approved. Welcome.");
+			log(tempUsername + " has joined the server as client #" + clientNumber + ".");
+			finishHandshake();
+			
+			// Everyone starts out in the main room
+			mainRoom.add(this);
+			joined.add(mainRoom);
+			room = mainRoom;
+			if (cluster != null)
+				cluster.send(Cluster.JOIN, null, username, "");
+			
+			// Send cached messages
+			replayHistory();
+			directMsg("-- End of Message History --");
+			
+			// Notify group of join
+			announce(username + " has joined the server.");
+			
+			// Send the list of online users
+			directMsg(getOnlineUsers());
+			
+			metrics.increment("logins");
+			metrics.histogram("latency.join").recordSince(started);
+			watch();
+		}
+		
+		/**
+		 * Send a message with server formatting to only this client.
+		 * 
+		 * @param msg
+		 *            - Message to be sent
+		 */
+		private void serverMsg(String msg)
+		{
+			directMsg(getTimestamp() + " <# server #> " + msg);
+		}
+		
+		/**
+		 * Prompt user for password. The next line from the client is hashed, checked against the stored hash, and
+		 * the result handed to the action. Without a reply by the handshake timeout the prompt is withdrawn and the
+		 * action never runs.
+		 * 
+		 * @param action
+		 *            - Action to run once the password has been checked
+		 */
+		private void promptAndValidatePassword(final AuthAction action)
+		{
+			pendingAuth.set(action);
+			deadline = timers.schedule(new Runnable() {
 				
-				// Wait for messages from client
-				while (true)
+				@Override
+				public void run()
 				{
-					if(in == null)
-						System.out.println("Dickhead!");
+					if (!pendingAuth.compareAndSet(action, null))
+						return;
 					
-					// Get the message that is sent to the server
-					String msg = in.readLine();
-					
-					// Ignore empty message with no formatting, since reload speed can exceed KeyListener refresh speed
-					if (msg == null || msg.equals(""))
-						continue;
-					
-					String command = extractMessageSegments(msg, 0)[3];
+					metrics.increment("auth.timedout");
+					serverMsg("Password prompt timed out.");
+				}
+			}, config.handshakeTimeoutMillis);
+			
+			// Prompt for user password
+			serverMsg("Enter password: ");
+		}
+		
+		/**
+		 * Extract the password from a client line, hash it, and check it against the stored hash.
+		 * 
+		 * @param reply
+		 *            - Line sent in reply to the password prompt
+		 * @return Passed (true) or failed (false) authentication
+		 */
+		private boolean validatePassword(String reply)
+		{
+			parsed.parse(reply);
+			String password = parsed.message();
+			return hashString(password).equals(hashedPassword);
+		}
+		
+		/**
+		 * The connection ended without an /exit. Notify the group if the client was still logged on.
+		 * 
+		 * @param cause
+		 *            - Error that ended the connection, or null if the client hung up
+		 */
+		protected void disconnected(Exception cause)
+		{
+			// A read failing because the server closed the connection is no error
+			if (cause != null && !closed.get())
+				log("Error handling client #" + clientNumber + ": " + cause);
+			
+			// If the client is still in the client list, notify the group that it logged off
+			close(clients.contains(this));
+		}
+		
+		/**
+		 * Close the connection to this client. Optionally notify all users that the client has left the server.
+		 * 
+		 * @param notify
+		 *            - Option to notify all other clients
+		 */
+		protected void close(boolean notify)
+		{
+			// Only the first close does anything
+			if (!closed.compareAndSet(false, true))
+				return;
+			
+			try
+			{
+				metrics.increment("connections.closed");
+				finishHandshake();
+				if (heartbeat != null)
+					heartbeat.cancel();
+				clients.remove(this);
+				for (Room r : joined)
+					partRoom(this, r, false);
+				if (cluster != null && username != null)
+					cluster.send(Cluster.LEAVE, null, username, "");
+				closeTransport();
+				if (username != null)
+					log(username + " has left the server.");
+				if (notify)
+					announce(username + " has left the server.");
+			}
+			catch (Exception e)
+			{
+				log("Error closing socket #" + clientNumber + ": " + e);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Work that waits on the reply to a password prompt.
+	 */
+	private interface AuthAction {
+		
+		/**
+		 * @param authenticated
+		 *            - Whether the reply matched the administrator password
+		 */
+		void run(boolean authenticated);
+	}
+	
+	/**
+	 * Client serviced by a dedicated thread doing blocking reads on its socket. The thread may be virtual, so nothing
+	 * on this path blocks inside a synchronized block: password prompts complete on the next read instead of a
+	 * nested one, and the java.io streams used here lock internally without pinning the carrier.
+	 * 
+	 * Outgoing messages are queued and written by a second thread, so a client that stops reading only stalls its
+	 * own writer and never the thread sending to it.
+	 */
+	public class SocketClient extends Client implements Runnable {
+		
+		private LineReader in;
+		private DataInputStream frames;
+		private SocketChannel channel;
+		private Socket socket;
+		private Executor writers;
+		
+		public SocketClient(int clientNumber, SocketChannel channel, Executor writers)
+		{
+			super(clientNumber, true);
+			this.channel = channel;
+			this.socket = channel.socket();
+			this.writers = writers;
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				// Initialize streams
+				in = new LineReader(socket.getInputStream(), config.maxLineLength);
+				
+				// Start draining the outbound queue
+				writers.execute(new Runnable() {
 					
-					if (!command.equals(""))
-					{
-						if (command.equals("/exit"))
-						{
-							// Close the connection for this client
-							close(true);
-							break;
-						}
-						else if (command.equals("/clear_cache"))
-						{
-							// Clear the server's cache of stored messages (requires password)
-							// Messages on user's screens are preserved for now
-							
-							// Request, receieve, hash, and check password against stored hash
-							if (promptAndValidatePassword())
-							{
-								messageCache.clear();
-								serverMsg("Cache cleared.");
-							}
-							else
-								serverMsg("Authentication failed.");
-						}
-						else if (command.equals("/pmsg"))
-						{
-							// Send a private message to another online user
-							// Format: [time] <usr> /cmd <usr1> <msg>
-							
-							// Extract segments with one expected argument
-							String[] segments = extractMessageSegments(msg, 1);
-							
-							// Check for errors from extraction
-							
-							if (segments.length == 1)
-							{
-								if (segments[0].equals("Too few arguments") || segments[0].equals("No command found"))
-									directMsg("\nUsage: /pmsg <user> <message>");
-								else
-									directMsg("\nUnknown error extracting message segments.");
-								
-								continue;
-							}
-							
-							// Get client by username
-							Client c = getClient(segments[4]);
-							
-							if (c != null)
-							{
-								// Add "Private: " + timestamp + <sender@arg1> + message
-								String pmsg = "Private: " + segments[0] + " <" + segments[1] + "@" + segments[4] + "> " + segments[2];
-								
-								// Send back to sender and receiver
-								c.directMsg(pmsg);
-								directMsg(pmsg);
-								
-							}
-							else
-								serverMsg("\"" + segments[4] + "\" is not online.");
-							
-						}
-						else if (command.equals("/users"))
-							// Return the list of users online
-							directMsg(getOnlineUsers());
-						else if (command.equals("/help"))
-							// Prints all possible commands available
-							directMsg(HELP_TEXT);
-						else if (muted)
-							serverMsg("You are currently muted.");
-						else if (command.equals("/mute"))
-						{
-							
-							// Mute the specified user
-							
-							// Extract segments with one expected argument
-							String[] segments = extractMessageSegments(msg, 1);
-							
-							if (segments.length == 1)
-							{
-								if (segments[0].equals("Too few arguments") || segments[0].equals("No command found"))
-									directMsg("\nUsage: /mute <user>");
-								else
-									directMsg("\nUnknown error extracting message segments.");
-								
-								continue;
-							}
-							
-							// Get the targeted client
-							Client c = getClient(segments[4]);
-							
-							if (c != null)
-							{
-								
-								// Mute the user
-								c.setMuted(true);
-								
-								// Notify the group
-								broadcastMsg(getTimestamp() + " <" + getUsername() + "> muted <" + c.getUsername() + ">.");
-								
-							}
-							else
-								serverMsg("\"" + segments[4] + "\" is not online.");
-							
-						}
-						else if (command.equals("/unmute"))
-						{
-							
-							// Unmute the specified user
-							
-							// Extract segments with one expected argument
-							String[] segments = extractMessageSegments(msg, 1);
-							
-							if (segments.length == 1)
-							{
-								if (segments[0].equals("Too few arguments") || segments[0].equals("No command found"))
-									directMsg("\nUsage: /unmute <user>");
-								else
-									directMsg("\nUnknown error extracting message segments.");
-								
-								continue;
-							}
-							
-							// Get the targeted client
-							Client c = getClient(segments[4]);
-							
-							if (c != null)
-							{
-								
-								// Unmute the user
-								c.setMuted(false);
-								
-								// Notify the group
-								broadcastMsg(getTimestamp() + " <" + getUsername() + "> unmuted <" + c.getUsername() + ">.");
-								
-							}
-							else
-								serverMsg("\"" + segments[4] + "\" is not online.");
-							
-						}
-						else if (command.equals("/ban"))
-						{
-							
-							// Ban the specified user from the server (requires password)
-							
-							// Extract segments with one expected argument
-							String[] segments = extractMessageSegments(msg, 1);
-							
-							if (segments.length == 1)
-							{
-								if (segments[0].equals("Too few arguments") || segments[0].equals("No command found"))
-									directMsg("\nUsage: /ban <user>");
-								else
-									directMsg("\nUnknown error extracting message segments.");
-								
-								continue;
-							}
-							
-							// Get the targeted client
-							Client c = getClient(segments[4]);
-							
-							if (promptAndValidatePassword() && c != null)
-							{
-								
-								// Ban the user
-								clients.remove(c);
-								c.directMsg("banned"); // Trigger banned routine in client
-								
-								// Notify the group
-								broadcastMsg(getTimestamp() + " <" + c.getUsername() + "> was banned from the server.");
-								
-							}
-							else if (c == null)
-								serverMsg("\"" + segments[4] + "\" is not online.");
-							else
-								serverMsg("Authentication failed.");
-							
-						}
-						else
-							// Command not found; Send help text
-							directMsg("\tInvalid command: \"" + command + "\"\n" + HELP_TEXT);
-					}
-					else
+					@Override
+					public void run()
 					{
-						// No special commands found. Broadcast the message (unless the user is muted)
-						
-						if (!muted)
-						{
-							broadcastMsg(msg);
-							messageCache.add(msg);
-						}
-						else
-							serverMsg("You are currently muted.");
-						
-						// Remove the oldest message if cache is full
-						if (messageCache.size() > MAX_CACHE_SIZE)
-							messageCache.remove(0);
+						writeQueued();
 					}
-				}
+				});
+				
+				connected();
+				
+				// Wait for messages from client, as lines until the client switches to frames
+				boolean open = true;
+				while (open)
+					open = framed() ? readFrame() : readLine();
+				
+				// Client hung up; does nothing after an /exit
+				disconnected(null);
 			}
-			catch (IOException e)
+			catch (IOException | RuntimeException e)
 			{
-				log("Error handling client #" + clientNumber + ": " + e);
-				
-				// If the client is still in the client list, notify the group that it logged off
-				if (clients.contains(this))
-					close(true);
-				else
-					close(false);
+				disconnected(e);
 			}
 		}
 		
 		/**
-		 * Send a message to only this client.
+		 * Read and handle one line.
 		 * 
-		 * @param msg
-		 *            - Message to be sent
+		 * @return Whether to keep reading
 		 */
-		public void directMsg(String msg)
+		private boolean readLine() throws IOException
 		{
-			out.println(msg);
+			String msg = in.readLine();
+			if (msg == null)
+				return false;
+			
+			return handleLine(msg);
 		}
 		
 		/**
-		 * Send a message with server formatting to only this client.
+		 * Read and handle one frame. The line reader has nothing buffered by now, since the client waits for the
+		 * answer to its /hello before sending its first frame.
 		 * 
-		 * @param msg
-		 *            - Message to be sent
+		 * @return Whether to keep reading
 		 */
-		private void serverMsg(String msg)
+		private boolean readFrame() throws IOException
 		{
-			directMsg(getTimestamp() + " <# server #> " + msg);
+			if (frames == null)
+				frames = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			
+			Frame frame = Frame.read(frames);
+			if (frame == null)
+				return false;
+			
+			return handleFrame(frame);
 		}
 		
 		/**
-		 * Prompt user for password, hash reply, and check against stored hash.
-		 * 
-		 * @return Passed (true) or failed (false) authentication
+		 * Write queued messages until the queue is closed or the socket fails. Everything queued by the time the
+		 * writer wakes, or arriving within the latency budget, goes out in one gathering write.
 		 */
-		private boolean promptAndValidatePassword()
+		private void writeQueued()
 		{
-			
-			// Prompt for user password
-			serverMsg("Enter password: ");
-			
-			// Wait for user reply and extract password
+			OutboundWriter writer = new OutboundWriter(channel, outbound);
 			try
 			{
+				long lingerNanos = config.coalesceMillis * 1000000L;
 				
-				String[] segments = extractMessageSegments(in.readLine(), 0);
-				String password = segments[2];
-				return hashString(password).equals(hashedPassword);
-				
+				while (writer.take(config.coalesceBytes, lingerNanos) > 0)
+				{
+					// A blocking channel normally takes the whole batch in one call
+					while (!writer.write())
+						;
+					
+					wrote(writer.messages(), writer.writes(), writer.bytes());
+					writer.resetCounts();
+				}
 			}
 			catch (IOException e)
 			{
-				
-				directMsg("Error handling password.");
-				log("Error handling password for user: " + getUsername() + ".");
-				return false;
-				
+				disconnected(e);
+			}
+			catch (InterruptedException e)
+			{
+				disconnected(null);
 			}
+			finally
+			{
+				writer.close();
+			}
+		}
+		
+		@Override
+		protected void queued()
+		{
+			// The writer is already waiting on the queue
+		}
+		
+		@Override
+		protected void closeTransport() throws IOException
+		{
+			outbound.close();
 			
+			// Close the channel first so a read blocked on another thread fails instead of holding the reader lock
+			channel.close();
+			if (in != null)
+				in.close();
+		}
+		
+	}
+	
+	/**
+	 * Client serviced by a shared selector loop. All protocol handling runs on the loop thread, so nothing here may
+	 * block.
+	 */
+	public class ChannelClient extends Client implements ChannelConnection.Handler {
+		
+		private ChannelConnection connection;
+		
+		public ChannelClient(int clientNumber, SocketChannel channel, SelectorLoop loop)
+		{
+			super(clientNumber, true);
+			connection = new ChannelConnection(channel, loop, this, outbound, config.coalesceBytes, config.coalesceMillis, config.maxLineLength);
 		}
 		
 		/**
-		 * Close the connection to this client. Optionally notify all users that the client has left the server.
-		 * 
-		 * @param notify
-		 *            - Option to notify all other clients
+		 * Register the channel with its loop.
 		 */
-		private void close(boolean notify)
+		public void start()
+		{
+			connection.loop().register(connection);
+		}
+		
+		@Override
+		public void opened()
+		{
+			connected();
+		}
+		
+		@Override
+		public void lineReceived(String line)
 		{
 			try
 			{
-				clients.remove(this);
-				in.close();
-				out.close();
-				socket.close();
-				log(username + " has left the server.");
-				if (notify)
-					broadcastMsg(username + " has left the server.");
+				handleLine(line);
 			}
-			catch (Exception e)
+			catch (RuntimeException e)
 			{
-				log("Error closing socket #" + clientNumber + ": " + e);
+				// A malformed line must not take down the loop
+				disconnected(e);
+			}
+		}
+		
+		@Override
+		public void frameReceived(Frame frame)
+		{
+			try
+			{
+				handleFrame(frame);
+			}
+			catch (RuntimeException e)
+			{
+				disconnected(e);
 			}
 		}
 		
+		@Override
+		public void closed(IOException cause)
+		{
+			disconnected(cause);
+		}
+		
+		@Override
+		protected void queued()
+		{
+			connection.queued();
+		}
+		
+		@Override
+		protected void closeTransport()
+		{
+			connection.close(null);
+		}
+		
 	}
 	
 	/**
@@ -635,17 +2331,121 @@ public class BashTalkServer {
 	 */
 	private void broadcastMsg(String msg)
 	{
-		for (Client client : clients)
+		broadcastMsg(new OutboundMessage(-1, msg));
+	}
+	
+	/**
+	 * Queue one message for every client in the client pool. Every client shares the same message.
+	 * 
+	 * @param msg
+	 *            - Message to be sent
+	 */
+	private void broadcastMsg(OutboundMessage msg)
+	{
+		for (Client client : clients.snapshot())
+			try
+			{
+				client.send(msg);
+			}
+			catch (Exception e)
+			{
+				System.out.println("Error sending message \"" + msg.text + "\": " + e);
+			}
+	}
+	
+	/**
+	 * Remove a banned client from the server: it leaves every room, is told it was banned, and is disconnected.
+	 * 
+	 * @param c
+	 *            - Client to ban
+	 */
+	private void ban(Client c)
+	{
+		dismiss(c, "banned"); // Trigger banned routine in client
+	}
+	
+	/**
+	 * Remove a client from the server without announcing it. It leaves every room at once, so nothing more reaches it
+	 * or comes from it, and is disconnected once the notice has had time to go out, whether or not it leaves by itself.
+	 * 
+	 * @param c
+	 *            - Client to remove
+	 * @param notice
+	 *            - Line telling the client why
+	 */
+	private void dismiss(final Client c, String notice)
+	{
+		c.dismissed = true;
+		clients.remove(c);
+		for (Room r : c.joined)
+			partRoom(c, r, false);
+		c.directMsg(notice);
+		
+		timers.schedule(new Runnable() {
+			
+			@Override
+			public void run()
+			{
+				c.close(false);
+			}
+		}, DISMISS_GRACE_MILLIS);
+	}
+	
+	/**
+	 * Send a notice to every user, on this node and the rest of the cluster.
+	 * 
+	 * @param msg
+	 *            - Notice to be sent
+	 */
+	private void announce(String msg)
+	{
+		broadcastMsg(msg);
+		if (cluster != null)
+			cluster.send(Cluster.NOTICE, null, "", msg);
+	}
+	
+	/**
+	 * Queue one message for every member of a room. Every member shares the same message.
+	 * 
+	 * @param room
+	 *            - Room to send to
+	 * @param msg
+	 *            - Message to be sent
+	 */
+	private void broadcastMsg(Room room, OutboundMessage msg)
+	{
+		for (Client client : room.members())
 			try
 			{
-				client.directMsg(msg);
+				client.send(msg);
 			}
 			catch (Exception e)
 			{
-				System.out.println("Error sending message \"" + msg + "\": " + e);
+				System.out.println("Error sending message \"" + msg.text + "\": " + e);
 			}
 	}
 	
+	/**
+	 * Clear the message history of a room. Clearing the main room also clears the on-disk log.
+	 * 
+	 * @param room
+	 *            - Room to clear, or null for none
+	 */
+	private void clearCache(Room room)
+	{
+		if (room != mainRoom)
+		{
+			if (room != null)
+				room.history().clear();
+			return;
+		}
+		
+		long before = messageCache.nextSeq();
+		messageCache.clear();
+		if (messageLog != null)
+			messageLog.clear(before);
+	}
+	
 	/**
 	 * Get a formatted string of online users.
 	 * 
@@ -653,11 +2453,17 @@ public class BashTalkServer {
 	 */
 	private String getOnlineUsers()
 	{
-		String users = "\nOnline Users: [";
-		for (Client c : clients)
-			users += c.getUsername() + ", ";
-		users = users.substring(0, users.length() - 2) + "]";
-		return users;
+		StringBuilder users = new StringBuilder("\nOnline Users: [");
+		for (Client c : clients.snapshot())
+			users.append(c.getUsername()).append(", ");
+		if (cluster != null)
+			for (String user : cluster.remoteUsers())
+				users.append(user).append(", ");
+		
+		// Drop the trailing separator
+		if (users.charAt(users.length() - 1) == ' ')
+			users.setLength(users.length() - 2);
+		return users.append(']').toString();
 	}
 	
 	/**
@@ -669,12 +2475,17 @@ public class BashTalkServer {
 	 */
 	private Client getClient(String username)
 	{
-		for (Client c : clients)
-			if (username.equals(c.getUsername()))
-				return c;
-			
-		// Client was not found
-		return null;
+		return clients.get(username);
+	}
+	
+	/**
+	 * Get the measurements of this server.
+	 * 
+	 * @return Server metrics
+	 */
+	Metrics getMetrics()
+	{
+		return metrics;
 	}
 	
 	/**
@@ -684,13 +2495,13 @@ public class BashTalkServer {
 	 *            - String to be hashed
 	 * @return Hashed string
 	 */
-	private String hashString(String str)
+	static String hashString(String str)
 	{
 		try
 		{
 			MessageDigest msgDg = MessageDigest.getInstance("SHA-256");
 			msgDg.update(str.getBytes());
-			return String.format("%032x", new BigInteger(1, msgDg.digest()));
+			return String.format("%064x", new BigInteger(1, msgDg.digest()));
 		}
 		catch (Exception e)
 		{
@@ -704,92 +2515,25 @@ public class BashTalkServer {
 	 * 
 	 * @return String Timestamp in [HH:mm] form
 	 */
-	private String getTimestamp()
+	static String getTimestamp()
 	{
 		DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm");
 		LocalDateTime now = LocalDateTime.now();
 		return "[" + dtf.format(now) + "]";
 	}
 	
-	/*
-	 * Converts the segments of a client message into an array of Strings. The array
-	 * is formatted as follows:
-	 * [0] - timestamp
-	 * [1] - sender
-	 * [2] - message
-	 * [3] - command (must have '/' as leading character) (optional)
-	 * [4] - argument1 (optional)
-	 * [5] - argument2 (optional)
-	 * ...
-	 * [3 + x] - argumentX
-	 * 
-	 * If too few arguments are provided, returns a String[] of length 1 with
-	 * "Too few arguments." in the first position. If no command is found but
-	 * numberOfArgs > 0, returns a String[] of length 1 with "No command found." in
-	 * the first position.
+	/**
+	 * Create a timestamp in [HH:mm] form for a given time.
 	 * 
+	 * @param millis
+	 *            - Time in milliseconds since the epoch
+	 * @return String Timestamp in [HH:mm] form
 	 */
-	private String[] extractMessageSegments(String msg, int numberOfArgs)
+	static String getTimestamp(long millis)
 	{
-		
-		final int MIN_LEN = 3; // Minimum number of positions required for a message
-		final int MSG_ARG_START = 3; // Position at which arguments start in msg
-		final int SEG_ARG_START = MIN_LEN + 1; // Arguments start at MIN_LEN + 1 in fSegments because an additional
-												// position is needed for command
-		
-		// Create array for final segments
-		String[] fSegments = new String[SEG_ARG_START + numberOfArgs];
-		
-		// Split raw segments at each space
-		String[] rSegments = msg.split(" ");
-		
-		// Check if there are less segments than needed
-		// If there are too few, return the error
-		// Handicap rSegments by 1 because fSegments always has a command field
-		if (rSegments.length + 1 < fSegments.length && numberOfArgs > 0)
-			return new String[] {"Too few arguments"};
-		
-		// Store the basic info
-		fSegments[0] = rSegments[0]; // Timestamp
-		fSegments[1] = rSegments[1].substring(1, rSegments[1].length() - 1); // Store sender without < and >
-		fSegments[2] = ""; // Initialize the message segment so that it can be added to below
-		fSegments[3] = rSegments.length > 2 && rSegments[2].indexOf("/") == 0 ? rSegments[2] : ""; // Store command if it begins with a /
-		
-		// Check if arguments were requested (implies a command), but no command was
-		// found
-		if (numberOfArgs > 0 && fSegments[3].length() == 0)
-			return new String[] {"No command found"};
-			
-		// Collect arguments
-		// Args fill [SEG_ARG_START] through [SEG_ARG_START + numberOfArgs - 1] in
-		// fSegments
-		// and [MSG_ARG_START] through [MSG_ARG_START + numberOfArgs - 1] in rSegments
-		for (int i = 0; i < numberOfArgs; i++)
-			fSegments[SEG_ARG_START + i] = rSegments[MSG_ARG_START + i];
-			
-		// Collect message segments and re-join with a space.
-		// Message segments starts at MIN_LEN + fSegments[3].indexOf("/") +
-		// numberOfArgs.
-		// fSegments[3].indexOf("/") checks to see if a valid command was found.
-		// If command is not found, indexOf will return -1.
-		// This will shift msgStart back one position to include what would usually be a
-		// command as part of the message.
-		// If a command is found, indexOf will return 0, leaving the msgStart unaffected
-		// and the command out of the message
-		int msgStart = MIN_LEN + fSegments[3].indexOf("/") + numberOfArgs;
-		for (int i = msgStart; i < rSegments.length; i++)
-		{
-			
-			// Add a space for every word after the first
-			if (i != msgStart)
-				fSegments[2] += " ";
-			
-			// Add each word of the message
-			fSegments[2] += rSegments[i];
-			
-		}
-		
-		return fSegments;
+		DateTimeFormatter dtf = DateTimeFormatter.ofPattern("HH:mm");
+		LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+		return "[" + dtf.format(time) + "]";
 	}
 	
 	/**
@@ -814,40 +2558,27 @@ public class BashTalkServer {
 	}
 	
 	/**
-	 * Get the external IP of the host device.
+	 * Get the external IP of the host device. Blocks for up to a few seconds, so it is only called off the startup
+	 * path.
 	 * 
-	 * @return External IP of host device
+	 * @return External IP of host device, or null if it could not be looked up
 	 */
 	public String getExternalIp()
 	{
-		URL AWSCheck = null;
+		BufferedReader in = null;
 		try
 		{
-			AWSCheck = new URL("http://checkip.amazonaws.com");
-		}
-		catch (MalformedURLException e1)
-		{
-			e1.printStackTrace();
+			URLConnection AWSCheck = new URL("http://checkip.amazonaws.com").openConnection();
+			AWSCheck.setConnectTimeout(3000);
+			AWSCheck.setReadTimeout(3000);
+			
+			in = new BufferedReader(new InputStreamReader(AWSCheck.getInputStream()));
+			return in.readLine();
 		}
-		BufferedReader in = null;
-		try
+		catch (IOException e)
 		{
-			try
-			{
-				in = new BufferedReader(new InputStreamReader(AWSCheck.openStream()));
-			}
-			catch (IOException e)
-			{
-				e.printStackTrace();
-			}
-			try
-			{
-				return in.readLine();
-			}
-			catch (IOException e)
-			{
-				e.printStackTrace();
-			}
+			// Offline or blocked; the address is only informational
+			return null;
 		}
 		finally
 		{
@@ -861,7 +2592,6 @@ public class BashTalkServer {
 					e.printStackTrace();
 				}
 		}
-		return null;
 	}
 	
 	/**
@@ -873,17 +2603,16 @@ public class BashTalkServer {
 	public static BashTalkServer parseArgs(String[] args)
 	{
 		
-		if (args.length > 0)
-			if (args[0].equals("-t"))
-				return new BashTalkServer(true);
-			else
+		ServerConfig config = new ServerConfig();
+		for (String arg : args)
+			if (!config.apply(arg))
 			{
-				System.out.println("Valid options: -t");
+				System.out.println(ServerConfig.USAGE);
 				System.exit(0);
 				return null;
 			}
-		else
-			return new BashTalkServer(false);
+		
+		return new BashTalkServer(config, "");
 		
 	}
 	
@@ -0,0 +1,393 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import bashtalkcommon.protocol.*;
+
+/**
+ * Non-blocking transport for one client channel. Inbound bytes are split into lines, or into frames once the client
+ * switches to the binary protocol, and handed to a {@link Handler} on the loop thread; outbound messages are queued
+ * already encoded, from any thread, in a bounded {@link OutboundQueue} owned by the client, and written by the loop
+ * when the channel can take them. Whatever is queued by the time the loop gets to a connection goes out in one
+ * gathering write, and a latency budget can hold writes back so more messages share each one. Queued history
+ * regions are sent straight from the log file. A line longer than a limit closes the connection, so a client that
+ * never ends its line cannot make the server buffer without bound.
+ * 
+ * @version 1.0.0
+ */
+class ChannelConnection {
+	
+	/**
+	 * Receives the events of a connection. Every callback runs on the connection's loop thread.
+	 */
+	interface Handler {
+		
+		/**
+		 * The channel is registered and ready for traffic.
+		 */
+		void opened();
+		
+		/**
+		 * A complete line arrived.
+		 * 
+		 * @param line
+		 *            - Line without its terminator
+		 */
+		void lineReceived(String line);
+		
+		/**
+		 * A complete frame arrived.
+		 * 
+		 * @param frame
+		 *            - Decoded frame
+		 */
+		void frameReceived(Frame frame);
+		
+		/**
+		 * Check whether inbound bytes are frames rather than lines. Asked again after every line or frame, so the
+		 * protocol can switch between two messages of the same read.
+		 * 
+		 * @return Whether the client speaks the binary protocol
+		 */
+		boolean framed();
+		
+		/**
+		 * The channel was closed, either by the peer, by an error, or locally.
+		 * 
+		 * @param cause
+		 *            - Error that closed the channel, or null for a clean close
+		 */
+		void closed(IOException cause);
+		
+		/**
+		 * Queued messages were written.
+		 * 
+		 * @param messages
+		 *            - Number of messages taken from the queue
+		 * @param writes
+		 *            - Number of writes it took
+		 * @param bytes
+		 *            - Number of bytes written
+		 */
+		void wrote(int messages, int writes, long bytes);
+	}
+	
+	private static final Charset CHARSET = Charset.defaultCharset();
+	
+	private final SocketChannel channel;
+	private final SelectorLoop loop;
+	private final Handler handler;
+	private final OutboundQueue<Object> outbound;
+	private final OutboundWriter writer;
+	private final int maxBatchBytes;
+	private final int maxLineLength;
+	private final long lingerMillis;
+	private final Runnable flushTask;
+	private final AtomicBoolean flushScheduled;
+	private final AtomicBoolean closed;
+	private SelectionKey key;
+	
+	// Bytes of a line or frame that has not fully arrived yet; only allocated while one is pending
+	private byte[] partial;
+	private int partialLength;
+	
+	/**
+	 * Wrap an accepted channel. Call {@link SelectorLoop#register(ChannelConnection)} to start it.
+	 * 
+	 * @param channel
+	 *            - Accepted client channel
+	 * @param loop
+	 *            - Loop that will own the channel
+	 * @param handler
+	 *            - Receiver of connection events
+	 * @param outbound
+	 *            - Queue of encoded messages and history regions waiting to be written
+	 * @param maxBatchBytes
+	 *            - Most bytes taken from the queue for one write
+	 * @param lingerMillis
+	 *            - How long to let messages gather before writing them
+	 * @param maxLineLength
+	 *            - Longest line accepted, in bytes
+	 */
+	ChannelConnection(SocketChannel channel, SelectorLoop loop, Handler handler, OutboundQueue<Object> outbound, int maxBatchBytes, long lingerMillis, int maxLineLength)
+	{
+		this.channel = channel;
+		this.loop = loop;
+		this.handler = handler;
+		this.outbound = outbound;
+		this.maxBatchBytes = maxBatchBytes;
+		this.lingerMillis = lingerMillis;
+		this.maxLineLength = maxLineLength;
+		writer = new OutboundWriter(channel, outbound);
+		flushScheduled = new AtomicBoolean(false);
+		closed = new AtomicBoolean(false);
+		
+		flushTask = new Runnable() {
+			
+			@Override
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				catch (IOException | CancelledKeyException e)
+				{
+					// Cancelled when another thread closed the connection while this flush was queued
+					close(e instanceof IOException ? (IOException) e : null);
+				}
+			}
+		};
+	}
+	
+	SocketChannel channel()
+	{
+		return channel;
+	}
+	
+	SelectorLoop loop()
+	{
+		return loop;
+	}
+	
+	void attach(SelectionKey key)
+	{
+		this.key = key;
+	}
+	
+	void opened()
+	{
+		handler.opened();
+	}
+	
+	/**
+	 * Make sure messages added to the outbound queue get written. Safe to call from any thread.
+	 */
+	void queued()
+	{
+		// Only one flush needs to be pending at a time; messages queued meanwhile join its batch
+		if (!flushScheduled.compareAndSet(false, true))
+			return;
+		
+		if (lingerMillis > 0)
+			loop.schedule(flushTask, lingerMillis);
+		else
+			loop.execute(flushTask);
+	}
+	
+	/**
+	 * Read whatever is available and dispatch complete lines and frames. Runs on the loop thread.
+	 * 
+	 * @param buffer
+	 *            - Scratch buffer shared by the loop
+	 * @throws IOException
+	 *             If the channel cannot be read or a frame is malformed
+	 */
+	void read(ByteBuffer buffer) throws IOException
+	{
+		buffer.clear();
+		int count = channel.read(buffer);
+		
+		// Peer closed its side
+		if (count < 0)
+		{
+			close(null);
+			return;
+		}
+		
+		byte[] bytes = buffer.array();
+		int end = buffer.position();
+		
+		if (partialLength == 0)
+		{
+			// Keep the incomplete remainder for the next read
+			int consumed = dispatch(bytes, 0, end);
+			if (consumed < end && !closed.get())
+				appendPartial(bytes, consumed, end - consumed);
+			return;
+		}
+		
+		// Finish what an earlier read started
+		appendPartial(bytes, 0, end);
+		int consumed = dispatch(partial, 0, partialLength);
+		partialLength -= consumed;
+		if (partialLength == 0)
+			partial = null;
+		else
+			System.arraycopy(partial, consumed, partial, 0, partialLength);
+	}
+	
+	/**
+	 * Write as much queued output as the channel accepts. Runs on the loop thread.
+	 * 
+	 * @throws IOException
+	 *             If the channel cannot be written
+	 */
+	void flush() throws IOException
+	{
+		flushScheduled.set(false);
+		if (closed.get())
+			return;
+		
+		try
+		{
+			while (true)
+			{
+				// Start the next batch once the last one is fully written
+				if (writer.idle() && writer.poll(maxBatchBytes) == 0)
+				{
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					return;
+				}
+				
+				// Socket buffer is full; wait until the selector reports it writable
+				if (!writer.write())
+				{
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		}
+		finally
+		{
+			if (writer.messages() > 0)
+				handler.wrote(writer.messages(), writer.writes(), writer.bytes());
+			writer.resetCounts();
+		}
+	}
+	
+	/**
+	 * Close the channel and notify the handler once. Safe to call from any thread.
+	 * 
+	 * @param cause
+	 *            - Error that caused the close, or null
+	 */
+	void close(IOException cause)
+	{
+		if (!closed.compareAndSet(false, true))
+			return;
+		
+		try
+		{
+			if (key != null)
+				key.cancel();
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			if (cause == null)
+				cause = e;
+		}
+		
+		outbound.close();
+		handler.closed(cause);
+		
+		// The writer belongs to the loop thread
+		if (loop.inLoop())
+			writer.close();
+		else
+			loop.execute(new Runnable() {
+				
+				@Override
+				public void run()
+				{
+					writer.close();
+				}
+			});
+	}
+	
+	/**
+	 * Dispatch every complete line or frame in a range of bytes.
+	 * 
+	 * @return Number of bytes consumed
+	 */
+	private int dispatch(byte[] bytes, int offset, int end) throws IOException
+	{
+		int start = offset;
+		while (start < end && !closed.get())
+		{
+			int next = handler.framed() ? nextFrame(bytes, start, end) : nextLine(bytes, start, end);
+			
+			// The rest has not fully arrived
+			if (next == start)
+				break;
+			
+			start = next;
+		}
+		
+		return start - offset;
+	}
+	
+	/**
+	 * Dispatch the line starting at a position, if it is complete.
+	 * 
+	 * @return Position after the line, or the start if it is incomplete
+	 * @throws IOException
+	 *             If the line is too long, whether or not it is complete
+	 */
+	private int nextLine(byte[] bytes, int start, int end) throws IOException
+	{
+		for (int i = start; i < end; i++)
+			if (bytes[i] == '\n')
+			{
+				checkLineLength(i - start);
+				handler.lineReceived(decode(bytes, start, i - start));
+				return i + 1;
+			}
+		
+		checkLineLength(end - start);
+		return start;
+	}
+	
+	private void checkLineLength(int length) throws IOException
+	{
+		if (length > maxLineLength)
+			throw new IOException("Line longer than " + maxLineLength + " bytes");
+	}
+	
+	/**
+	 * Dispatch the frame starting at a position, if it is complete.
+	 * 
+	 * @return Position after the frame, or the start if it is incomplete
+	 */
+	private int nextFrame(byte[] bytes, int start, int end) throws IOException
+	{
+		if (end - start < 4)
+			return start;
+		
+		int length = (bytes[start] & 0xff) << 24 | (bytes[start + 1] & 0xff) << 16 | (bytes[start + 2] & 0xff) << 8 | (bytes[start + 3] & 0xff);
+		Frame.checkLength(length);
+		if (end - start - 4 < length)
+			return start;
+		
+		handler.frameReceived(Frame.decode(bytes, start + 4, length));
+		return start + 4 + length;
+	}
+	
+	/**
+	 * Decode a line, dropping a trailing carriage return.
+	 */
+	private static String decode(byte[] bytes, int offset, int length)
+	{
+		if (length > 0 && bytes[offset + length - 1] == '\r')
+			length--;
+		
+		return new String(bytes, offset, length, CHARSET);
+	}
+	
+	private void appendPartial(byte[] bytes, int offset, int length)
+	{
+		if (partial == null)
+			partial = new byte[Math.max(length, 128)];
+		else if (partialLength + length > partial.length)
+			partial = Arrays.copyOf(partial, Math.max(partialLength + length, partial.length * 2));
+		
+		System.arraycopy(bytes, offset, partial, partialLength, length);
+		partialLength += length;
+	}
+}
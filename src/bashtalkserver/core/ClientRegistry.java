@@ -0,0 +1,166 @@
+package bashtalkserver.core;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import bashtalkserver.core.BashTalkServer.*;
+
+/**
+ * Thread-safe index of the clients logged in to a server, by client number and by username. Connections still
+ * logging in are not tracked, so they never take a place. Usernames and places are reserved atomically, and fan-out
+ * iterates an immutable snapshot so membership can change mid-broadcast.
+ * 
+ * @version 1.0.0
+ */
+class ClientRegistry {
+	
+	private static final Client[] EMPTY = new Client[0];
+	
+	private final ConcurrentHashMap<Integer, Client> byNumber;
+	private final ConcurrentHashMap<String, Client> byName;
+	
+	// Bumped after every login or logout so a stale snapshot is never reused
+	private final AtomicLong version;
+	
+	// Logged in clients ordered by client number; rebuilt on first use after any change
+	private volatile Snapshot snapshot;
+	
+	ClientRegistry()
+	{
+		byNumber = new ConcurrentHashMap<Integer, Client>();
+		byName = new ConcurrentHashMap<String, Client>();
+		version = new AtomicLong();
+		snapshot = new Snapshot(0, EMPTY);
+	}
+	
+	/**
+	 * Add a client under its username, unless the name is taken. Only one client can hold a name at a time.
+	 * 
+	 * @param username
+	 *            - Username of the client
+	 * @param client
+	 *            - Client to add
+	 * @return Whether the client was added
+	 */
+	boolean reserve(String username, Client client)
+	{
+		return reserve(username, client, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Log a client in under a username, unless the name is taken or the server is full. Only one client can hold a
+	 * name at a time. Logins are serialized so two of them cannot both take the last place; logouts need no lock,
+	 * since they only make room.
+	 * 
+	 * @param username
+	 *            - Requested username
+	 * @param client
+	 *            - Client requesting the name
+	 * @param limit
+	 *            - Most clients that may be logged in
+	 * @return Whether the client is now logged in under the name
+	 */
+	synchronized boolean reserve(String username, Client client, int limit)
+	{
+		if (byNumber.size() >= limit || byName.putIfAbsent(username, client) != null)
+			return false;
+		
+		byNumber.put(client.clientNumber, client);
+		version.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Stop tracking a client and release its username.
+	 * 
+	 * @param client
+	 *            - Client to be removed
+	 * @return Whether the client was still registered
+	 */
+	boolean remove(Client client)
+	{
+		boolean removed = byNumber.remove(client.clientNumber, client);
+		
+		if (client.getUsername() != null && byName.remove(client.getUsername(), client))
+			version.incrementAndGet();
+		
+		return removed;
+	}
+	
+	/**
+	 * Check whether a client is still logged in.
+	 * 
+	 * @param client
+	 *            - Client to look for
+	 * @return Whether the client is registered
+	 */
+	boolean contains(Client client)
+	{
+		return byNumber.get(client.clientNumber) == client;
+	}
+	
+	/**
+	 * Look up a logged in client by username.
+	 * 
+	 * @param username
+	 *            - Username of desired client
+	 * @return Client with the username, or null if none is online
+	 */
+	Client get(String username)
+	{
+		return byName.get(username);
+	}
+	
+	/**
+	 * Count the logged in clients.
+	 * 
+	 * @return Number of logged in clients
+	 */
+	int size()
+	{
+		return byNumber.size();
+	}
+	
+	/**
+	 * Get the logged in clients, ordered by client number. The array is shared and must not be modified.
+	 * 
+	 * @return Snapshot of logged in clients
+	 */
+	Client[] snapshot()
+	{
+		long current = version.get();
+		Snapshot cached = snapshot;
+		if (cached.version == current)
+			return cached.clients;
+		
+		Client[] clients = byName.values().toArray(EMPTY);
+		Arrays.sort(clients, new Comparator<Client>() {
+			
+			@Override
+			public int compare(Client a, Client b)
+			{
+				return Integer.compare(a.clientNumber, b.clientNumber);
+			}
+		});
+		
+		// A change racing with the rebuild bumps the version again, so the next caller rebuilds
+		snapshot = new Snapshot(current, clients);
+		return clients;
+	}
+	
+	/**
+	 * Logged in clients as of one registry version.
+	 */
+	private static class Snapshot {
+		
+		final long version;
+		final Client[] clients;
+		
+		Snapshot(long version, Client[] clients)
+		{
+			this.version = version;
+			this.clients = clients;
+		}
+	}
+}
@@ -0,0 +1,661 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import bashtalkcommon.protocol.*;
+
+/**
+ * Bridge between the servers of a cluster, so users connected to different nodes see one chat. Every node keeps a
+ * TCP link to each of its peers and sends them the events that happen locally: chat and private messages, notices,
+ * logins and logouts, mutes, and bans. Events from a peer are only applied locally and never passed on, so the nodes
+ * form a full mesh.
+ * 
+ * Links carry {@link Frame}s of type {@link Frame#TYPE_PEER}, with the event in the command. Either node of a pair
+ * may dial the other, or both may; an event that arrives over two links is applied once, going by the sending
+ * node's event counter. A dialed link that drops is dialed again until it comes back.
+ * 
+ * With a shared secret, each end of a link proves it knows the secret before any event is taken from it: both send a
+ * random challenge in their hello and answer the other's with an HMAC over it and their own name. Without a secret,
+ * peer links are only accepted on a loopback address.
+ * 
+ * A username may only be online once in the cluster, but two nodes can let the same one log in at about the same
+ * time. When their logins meet, the one on the node whose name sorts first wins on every node, and the other node
+ * disconnects its own.
+ * 
+ * @version 1.0.0
+ */
+class Cluster {
+	
+	/**
+	 * Applies events from peers to the local server. Called on the thread reading the link.
+	 */
+	interface Handler {
+		
+		/**
+		 * An event arrived from a peer.
+		 * 
+		 * @param event
+		 *            - One of the event names defined by {@link Cluster}
+		 * @param arg
+		 *            - Room or user the event is about, or null
+		 * @param sender
+		 *            - User who caused the event
+		 * @param body
+		 *            - Message text
+		 */
+		void received(String event, String arg, String sender, String body);
+		
+		/**
+		 * A node joined the cluster, or a lost one came back.
+		 * 
+		 * @param node
+		 *            - Name of the node
+		 */
+		void peerUp(String node);
+		
+		/**
+		 * The last link to a node closed. Its users are no longer online.
+		 * 
+		 * @param node
+		 *            - Name of the node
+		 * @param users
+		 *            - Users who were connected to it
+		 */
+		void peerDown(String node, List<String> users);
+		
+		/**
+		 * Check whether a user is logged into this node.
+		 * 
+		 * @param username
+		 *            - Username to look up
+		 * @return Whether the user is connected here
+		 */
+		boolean isLocal(String username);
+		
+		/**
+		 * A user logged into this node is also logged into another, and the other login wins. Disconnect the one here,
+		 * if it is still connected.
+		 * 
+		 * @param username
+		 *            - User to disconnect
+		 * @param node
+		 *            - Node keeping the user
+		 */
+		void kick(String username, String node);
+		
+		/**
+		 * Get the users logged into this node, so a new peer can learn who is online.
+		 * 
+		 * @return Usernames of local users
+		 */
+		List<String> localUsers();
+	}
+	
+	/** A chat message to a room; arg is the room */
+	static final String CHAT = "chat";
+	
+	/** A notice for every user */
+	static final String NOTICE = "notice";
+	
+	/** A private message; arg is the recipient */
+	static final String PMSG = "pmsg";
+	
+	/** A user logged in; sender is the user */
+	static final String JOIN = "join";
+	
+	/** A user logged out; sender is the user */
+	static final String LEAVE = "leave";
+	
+	/** A user was muted in a room; arg is the room, sender the muted user, body the notice */
+	static final String MUTE = "mute";
+	
+	/** A user was unmuted in a room; arg is the room, sender the unmuted user, body the notice */
+	static final String UNMUTE = "unmute";
+	
+	/** A user was banned; arg is the user */
+	static final String BAN = "ban";
+	
+	// First frame on every link: sender is the node, body the time it started and a challenge for the other end
+	private static final String HELLO = "hello";
+	
+	// Second frame on every link when there is a secret: sender is the node, body its answer to the challenge
+	private static final String AUTH = "auth";
+	
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	private static final int CHALLENGE_BYTES = 16;
+	
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+	
+	// How long a new link has to say hello and prove it knows the secret
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+	private static final long RETRY_MILLIS = 2000;
+	
+	// Events a node sent before the newest one seen from it that can still be told apart from repeats. An event
+	// over a backed-up link can arrive after newer ones that took another link
+	private static final int SEEN_WINDOW = 1024;
+	
+	private final String node;
+	private final long incarnation;
+	private final InetSocketAddress address;
+	private final List<InetSocketAddress> peers;
+	private final Handler handler;
+	private final ServerConfig config;
+	
+	// Key shared by every node, or null if links are not authenticated
+	private final SecretKeySpec secret;
+	private final SecureRandom random;
+	
+	private final CopyOnWriteArrayList<Link> links;
+	private final AtomicLong counter;
+	
+	// Users of other nodes, by username, with the node they are on
+	private final ConcurrentHashMap<String, String> remoteUsers;
+	
+	// Recent events applied from each node; guarded by itself
+	private final HashMap<String, Origin> origins;
+	
+	/**
+	 * Set up a node. Nothing is opened until {@link #start()}.
+	 * 
+	 * @param node
+	 *            - Name of this node, unique within the cluster
+	 * @param address
+	 *            - Address to accept peer links on
+	 * @param peers
+	 *            - Addresses of the peers to dial
+	 * @param config
+	 *            - Server settings, for the bounds of each link's queue
+	 * @param secret
+	 *            - Secret shared by every node, or null to accept links only on a loopback address
+	 * @param handler
+	 *            - Applies events from peers
+	 */
+	Cluster(String node, InetSocketAddress address, List<InetSocketAddress> peers, ServerConfig config, String secret, Handler handler)
+	{
+		this.node = node;
+		this.address = address;
+		this.peers = peers;
+		this.config = config;
+		this.handler = handler;
+		this.secret = secret != null ? new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM) : null;
+		random = new SecureRandom();
+		incarnation = System.currentTimeMillis();
+		links = new CopyOnWriteArrayList<Link>();
+		counter = new AtomicLong();
+		remoteUsers = new ConcurrentHashMap<String, String>();
+		origins = new HashMap<String, Origin>();
+	}
+	
+	/**
+	 * Parse a list of peers.
+	 * 
+	 * @param list
+	 *            - Comma separated host:port pairs
+	 * @return Peer addresses
+	 * @throws IllegalArgumentException
+	 *             If an entry is not a host:port pair
+	 */
+	static List<InetSocketAddress> parsePeers(String list)
+	{
+		List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+		for (String peer : list.split(","))
+		{
+			int colon = peer.lastIndexOf(':');
+			if (colon <= 0)
+				throw new IllegalArgumentException("Not a host:port pair: " + peer);
+			
+			peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+		}
+		
+		return peers;
+	}
+	
+	/**
+	 * Start accepting links and dialing peers.
+	 * 
+	 * @throws IOException
+	 *             If the peer port cannot be opened, or is not on a loopback address and there is no secret
+	 */
+	void start() throws IOException
+	{
+		if (secret == null && (address.getAddress() == null || !address.getAddress().isLoopbackAddress()))
+			throw new IOException("Peer links on " + address.getHostString() + " need a cluster secret");
+		
+		final ServerSocket listener = new ServerSocket();
+		listener.bind(address);
+		
+		daemon("cluster-listener", new Runnable() {
+			
+			@Override
+			public void run()
+			{
+				while (!listener.isClosed())
+					try
+					{
+						final Socket socket = listener.accept();
+						daemon("cluster-link", new Runnable() {
+							
+							@Override
+							public void run()
+							{
+								new Link(socket).run();
+							}
+						});
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+			}
+		});
+		
+		for (final InetSocketAddress peer : peers)
+			daemon("cluster-dialer-" + peer, new Runnable() {
+				
+				@Override
+				public void run()
+				{
+					dial(peer);
+				}
+			});
+	}
+	
+	/**
+	 * Send a local event to every peer. Never blocks; a peer that cannot keep up is dropped and dialed again.
+	 * 
+	 * @param event
+	 *            - One of the event names defined by this class
+	 * @param arg
+	 *            - Room or user the event is about, or null
+	 * @param sender
+	 *            - User who caused the event
+	 * @param body
+	 *            - Message text
+	 */
+	void send(String event, String arg, String sender, String body)
+	{
+		byte[] bytes;
+		try
+		{
+			bytes = encode(counter.incrementAndGet(), event, arg, sender, body);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Could not send " + event + " to the cluster: " + e.getMessage());
+			return;
+		}
+		
+		for (Link link : links)
+			link.offer(bytes);
+	}
+	
+	/**
+	 * Check whether a user is logged into another node.
+	 * 
+	 * @param username
+	 *            - Username to look up
+	 * @return Whether the user is online elsewhere in the cluster
+	 */
+	boolean hasUser(String username)
+	{
+		return remoteUsers.containsKey(username);
+	}
+	
+	/**
+	 * Get the users logged into other nodes.
+	 * 
+	 * @return Usernames, in no particular order
+	 */
+	Collection<String> remoteUsers()
+	{
+		return remoteUsers.keySet();
+	}
+	
+	/**
+	 * Keep a link to a peer open, dialing again whenever it drops.
+	 */
+	private void dial(InetSocketAddress peer)
+	{
+		while (true)
+		{
+			try (Socket socket = new Socket())
+			{
+				socket.connect(new InetSocketAddress(peer.getHostString(), peer.getPort()), CONNECT_TIMEOUT_MILLIS);
+				new Link(socket).run();
+			}
+			catch (IOException e)
+			{
+				// Peer is not up yet
+			}
+			
+			try
+			{
+				Thread.sleep(RETRY_MILLIS);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Check whether an event from a node has not been applied yet, and remember it if so. Events without a number
+	 * are always applied; events too far behind the newest one from their node to tell are not.
+	 */
+	private boolean firstSeen(String peer, long peerIncarnation, long seq)
+	{
+		if (seq < 0)
+			return true;
+		
+		synchronized (origins)
+		{
+			// A node that restarted numbers its events from the beginning again
+			Origin origin = origins.get(peer);
+			if (origin == null || origin.incarnation != peerIncarnation)
+			{
+				origin = new Origin(peerIncarnation);
+				origins.put(peer, origin);
+			}
+			
+			int slot = (int) (seq % SEEN_WINDOW);
+			if (seq <= origin.last - SEEN_WINDOW || origin.seen[slot] == seq)
+				return false;
+			
+			origin.seen[slot] = seq;
+			origin.last = Math.max(origin.last, seq);
+			return true;
+		}
+	}
+	
+	/**
+	 * Record a login on another node, settling any clash with a login of the same username elsewhere. The node whose
+	 * name sorts first keeps the user; every node decides the same way, so the loser's own node disconnects it.
+	 */
+	private void joined(String user, String peer)
+	{
+		// Two other nodes may both have the user while their logins cross
+		while (true)
+		{
+			String current = remoteUsers.putIfAbsent(user, peer);
+			if (current == null || current.compareTo(peer) <= 0 || remoteUsers.replace(user, current, peer))
+				break;
+		}
+		
+		// Recorded before looking here, so a login racing this one sees it or is seen
+		if (peer.compareTo(node) < 0)
+			handler.kick(user, peer);
+		else if (handler.isLocal(user))
+			remoteUsers.remove(user, peer);
+	}
+	
+	/**
+	 * Check whether a user logged in here lost to a login of the same username on another node.
+	 * 
+	 * @param username
+	 *            - Username to look up
+	 * @return Whether a node whose name sorts before this one has the user
+	 */
+	boolean outranked(String username)
+	{
+		String holder = remoteUsers.get(username);
+		return holder != null && holder.compareTo(node) < 0;
+	}
+	
+	/**
+	 * Make a random challenge for the other end of a link.
+	 */
+	private String challenge()
+	{
+		byte[] bytes = new byte[CHALLENGE_BYTES];
+		random.nextBytes(bytes);
+		return toHex(bytes);
+	}
+	
+	/**
+	 * Answer a challenge: the HMAC of the challenge and the name of the node answering, keyed with the secret.
+	 */
+	private String answer(String challenge, String from) throws IOException
+	{
+		try
+		{
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(secret);
+			return toHex(mac.doFinal((challenge + " " + from).getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (GeneralSecurityException e)
+		{
+			throw new IOException("Cannot authenticate peer links", e);
+		}
+	}
+	
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+	
+	/**
+	 * Check whether any open link leads to a node.
+	 */
+	private boolean linked(String peer)
+	{
+		for (Link link : links)
+			if (peer.equals(link.peer))
+				return true;
+		
+		return false;
+	}
+	
+	private static byte[] encode(long seq, String event, String arg, String sender, String body) throws IOException
+	{
+		String command = arg == null ? event : event + " " + arg;
+		return new Frame(Frame.TYPE_PEER, seq, System.currentTimeMillis(), sender, command, body).encode().array();
+	}
+	
+	private static void daemon(String name, Runnable task)
+	{
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * The newest event applied from one run of a node.
+	 */
+	private static class Origin {
+		
+		final long incarnation;
+		long last;
+		
+		// Sequence numbers of recently applied events, by slot
+		final long[] seen;
+		
+		Origin(long incarnation)
+		{
+			this.incarnation = incarnation;
+			last = 0;
+			seen = new long[SEEN_WINDOW];
+			Arrays.fill(seen, -1);
+		}
+	}
+	
+	/**
+	 * One link to a peer. Frames are read on the thread running the link and written by a second thread from a
+	 * bounded queue, the same way blocking clients are served.
+	 */
+	private class Link implements Runnable {
+		
+		private final Socket socket;
+		private final OutboundQueue<byte[]> outbound;
+		
+		// Name of the node at the other end, once its hello has arrived
+		volatile String peer;
+		
+		Link(Socket socket)
+		{
+			this.socket = socket;
+			outbound = new OutboundQueue<byte[]>(config.maxQueuedMessages, config.maxQueuedBytes, config.maxLagMillis);
+		}
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				final OutputStream out = socket.getOutputStream();
+				
+				daemon("cluster-writer", new Runnable() {
+					
+					@Override
+					public void run()
+					{
+						writeQueued(out);
+					}
+				});
+				
+				// Nothing is taken from the other end until it has said who it is and, with a secret, proved it knows it
+				socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+				String challenge = challenge();
+				offer(encode(-1, HELLO, null, node, incarnation + " " + challenge));
+				
+				Frame hello = Frame.read(in);
+				if (hello == null || hello.type != Frame.TYPE_PEER || !hello.command.equals(HELLO) || hello.sender.equals(node))
+					return;
+				
+				String[] greeting = hello.body.split(" ");
+				long peerIncarnation = Long.parseLong(greeting[0]);
+				
+				if (secret != null)
+				{
+					if (greeting.length != 2)
+						return;
+					offer(encode(-1, AUTH, null, node, answer(greeting[1], node)));
+					
+					Frame auth = Frame.read(in);
+					byte[] expected = answer(challenge, hello.sender).getBytes(StandardCharsets.UTF_8);
+					if (auth == null || auth.type != Frame.TYPE_PEER || !auth.command.equals(AUTH) || !MessageDigest.isEqual(expected, auth.body.getBytes(StandardCharsets.UTF_8)))
+					{
+						System.out.println("Cluster link from " + socket.getRemoteSocketAddress() + " failed to authenticate.");
+						return;
+					}
+				}
+				socket.setSoTimeout(0);
+				peer = hello.sender;
+				
+				boolean first = !linked(peer);
+				links.add(this);
+				if (first)
+					handler.peerUp(peer);
+				
+				// Tell the new peer who is online here. Logins are idempotent, so these are not numbered
+				for (String user : handler.localUsers())
+					offer(encode(-1, JOIN, null, user, ""));
+				
+				Frame frame;
+				while ((frame = Frame.read(in)) != null)
+					if (frame.type == Frame.TYPE_PEER && firstSeen(peer, peerIncarnation, frame.seq))
+						apply(frame);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// Link dropped or peer misbehaved; a dialer tries again
+			}
+			finally
+			{
+				close();
+			}
+		}
+		
+		/**
+		 * Queue an encoded frame, dropping the link if the peer has fallen too far behind.
+		 */
+		void offer(byte[] bytes)
+		{
+			if (!outbound.offer(bytes, bytes.length))
+				close();
+		}
+		
+		/**
+		 * Apply one event from the peer.
+		 */
+		private void apply(Frame frame)
+		{
+			int space = frame.command.indexOf(' ');
+			String event = space < 0 ? frame.command : frame.command.substring(0, space);
+			String arg = space < 0 ? null : frame.command.substring(space + 1);
+			
+			if (event.equals(JOIN))
+				joined(frame.sender, peer);
+			else if (event.equals(LEAVE))
+				remoteUsers.remove(frame.sender, peer);
+			else
+				handler.received(event, arg, frame.sender, frame.body);
+		}
+		
+		/**
+		 * Write queued frames until the link closes.
+		 */
+		private void writeQueued(OutputStream out)
+		{
+			try
+			{
+				byte[][] batch = new byte[OutboundQueue.MAX_BATCH][];
+				BufferedOutputStream buffered = new BufferedOutputStream(out, config.coalesceBytes);
+				
+				int count;
+				while ((count = outbound.takeBatch(batch, config.coalesceBytes, 0)) > 0)
+				{
+					for (int i = 0; i < count; i++)
+					{
+						buffered.write(batch[i]);
+						batch[i] = null;
+					}
+					buffered.flush();
+				}
+			}
+			catch (IOException | InterruptedException e)
+			{
+				close();
+			}
+		}
+		
+		/**
+		 * Close the link. Once no link to the peer is left, its users go offline.
+		 */
+		private void close()
+		{
+			outbound.close();
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// Already closed
+			}
+			
+			if (!links.remove(this) || linked(peer))
+				return;
+			
+			List<String> users = new ArrayList<String>();
+			for (Map.Entry<String, String> user : remoteUsers.entrySet())
+				if (user.getValue().equals(peer) && remoteUsers.remove(user.getKey(), peer))
+					users.add(user.getKey());
+			
+			handler.peerDown(peer, users);
+		}
+	}
+}
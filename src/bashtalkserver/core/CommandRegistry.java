@@ -0,0 +1,89 @@
+package bashtalkserver.core;
+
+import java.util.*;
+
+import bashtalkserver.core.BashTalkServer.*;
+
+/**
+ * Table of the slash-commands a server understands, keyed by name. Each command declares how many arguments it
+ * takes, so a line is split into arguments once, by the dispatcher, before its handler runs.
+ * 
+ * @version 1.0.0
+ */
+class CommandRegistry {
+	
+	/**
+	 * Carries out one command.
+	 */
+	interface Handler {
+		
+		/**
+		 * @param client
+		 *            - Client that sent the command
+		 * @param msg
+		 *            - Parsed command, already split into the declared number of arguments
+		 * @return Whether the client's connection is still open
+		 */
+		boolean run(Client client, ParsedMessage msg);
+	}
+	
+	/**
+	 * A registered command.
+	 */
+	static class Command {
+		
+		final String name;
+		final int arity;
+		final String usage;
+		final boolean allowedWhileMuted;
+		final Handler handler;
+		
+		Command(String name, int arity, String usage, boolean allowedWhileMuted, Handler handler)
+		{
+			this.name = name;
+			this.arity = arity;
+			this.usage = usage;
+			this.allowedWhileMuted = allowedWhileMuted;
+			this.handler = handler;
+		}
+	}
+	
+	private final HashMap<String, Command> commands;
+	
+	CommandRegistry()
+	{
+		commands = new HashMap<String, Command>();
+	}
+	
+	/**
+	 * Add a command. Commands are registered while the server is constructed and never change afterwards, so lookups
+	 * need no locking.
+	 * 
+	 * @param name
+	 *            - Command, including its leading '/'
+	 * @param arity
+	 *            - Number of arguments before the message text
+	 * @param usage
+	 *            - Usage shown when too few arguments are given
+	 * @param allowedWhileMuted
+	 *            - Whether a muted user may run the command
+	 * @param handler
+	 *            - Carries out the command
+	 */
+	void register(String name, int arity, String usage, boolean allowedWhileMuted, Handler handler)
+	{
+		commands.put(name, new Command(name, arity, usage, allowedWhileMuted, handler));
+	}
+	
+	/**
+	 * Look up a command by name.
+	 * 
+	 * @param name
+	 *            - Command, including its leading '/'
+	 * @return Registered command, or null if there is none
+	 */
+	Command get(String name)
+	{
+		return commands.get(name);
+	}
+}
@@ -0,0 +1,115 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.nio.charset.*;
+
+/**
+ * Reads lines from a blocking client like {@link BufferedReader#readLine()}, but refuses lines longer than a limit,
+ * so a client that never ends its line cannot make the server buffer without bound. Lines end at a line feed, and a
+ * carriage return before it is dropped, the same as on the non-blocking path. Like that path, the limit is on the
+ * encoded bytes of a line, counted before it is decoded.
+ * 
+ * @version 1.0.0
+ */
+class LineReader implements Closeable {
+	
+	private static final int BUFFER_SIZE = 8192;
+	private static final Charset CHARSET = Charset.defaultCharset();
+	
+	private final InputStream in;
+	private final int maxLength;
+	private final byte[] buffer;
+	private int start;
+	private int end;
+	
+	/**
+	 * @param in
+	 *            - Bytes from the client
+	 * @param maxLength
+	 *            - Longest line accepted, in bytes
+	 */
+	LineReader(InputStream in, int maxLength)
+	{
+		this.in = in;
+		this.maxLength = maxLength;
+		buffer = new byte[BUFFER_SIZE];
+		start = 0;
+		end = 0;
+	}
+	
+	/**
+	 * Read the next line.
+	 * 
+	 * @return Line without its terminator, or null if the stream ended first
+	 * @throws IOException
+	 *             If the stream fails or the line is too long
+	 */
+	String readLine() throws IOException
+	{
+		// Only used for lines that span more than one read
+		ByteArrayOutputStream line = null;
+		
+		while (true)
+		{
+			for (int i = start; i < end; i++)
+				if (buffer[i] == '\n')
+				{
+					String complete;
+					if (line == null)
+					{
+						checkLength(i - start);
+						complete = decode(buffer, start, i - start);
+					}
+					else
+					{
+						line.write(buffer, start, i - start);
+						checkLength(line.size());
+						complete = decode(line.toByteArray(), 0, line.size());
+					}
+					
+					start = i + 1;
+					return complete;
+				}
+			
+			// No line feed yet; keep what there is and read more
+			if (end > start)
+			{
+				if (line == null)
+					line = new ByteArrayOutputStream();
+				line.write(buffer, start, end - start);
+				checkLength(line.size());
+			}
+			
+			start = 0;
+			end = in.read(buffer, 0, buffer.length);
+			if (end < 0)
+			{
+				end = 0;
+				return line != null ? decode(line.toByteArray(), 0, line.size()) : null;
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+	
+	private void checkLength(int length) throws IOException
+	{
+		if (length > maxLength)
+			throw new IOException("Line longer than " + maxLength + " bytes");
+	}
+	
+	/**
+	 * Decode a line, dropping a trailing carriage return.
+	 */
+	private static String decode(byte[] bytes, int offset, int length)
+	{
+		if (length > 0 && bytes[offset + length - 1] == '\r')
+			length--;
+		
+		return new String(bytes, offset, length, CHARSET);
+	}
+}
@@ -0,0 +1,192 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * One address the server listens on, served by one or more acceptor threads. An acceptor does nothing but accept
+ * connections and hand them to a {@link Handler}, so it is free to accept again at once. The acceptors share one
+ * socket, whose accept is safe to call from several threads. The port is bound exclusively, so a second server
+ * started on the same port fails instead of quietly taking half the connections.
+ * 
+ * @version 1.0.0
+ */
+class Listener {
+	
+	/**
+	 * Takes the connections accepted by a listener. Called on the acceptor threads, so it must not block for long.
+	 */
+	interface Handler {
+		
+		/**
+		 * A connection was accepted.
+		 * 
+		 * @param channel
+		 *            - Accepted connection, still in blocking mode
+		 */
+		void accepted(SocketChannel channel);
+	}
+	
+	// How long an acceptor waits after a failed accept, such as when the server is out of file descriptors
+	private static final long ACCEPT_RETRY_MILLIS = 100;
+	
+	final InetSocketAddress address;
+	private final int acceptorCount;
+	private ServerSocketChannel channel;
+	private final List<Thread> acceptors;
+	
+	/**
+	 * @param address
+	 *            - Address and port to listen on
+	 * @param acceptorCount
+	 *            - Number of acceptor threads
+	 */
+	Listener(InetSocketAddress address, int acceptorCount)
+	{
+		this.address = address;
+		this.acceptorCount = acceptorCount;
+		acceptors = new ArrayList<Thread>();
+	}
+	
+	/**
+	 * Parse a listen address written as [&lt;address&gt;:]&lt;port&gt;. IPv6 addresses go in square brackets.
+	 * 
+	 * @param value
+	 *            - Address to parse
+	 * @return Socket address, or null if it is not valid
+	 */
+	static InetSocketAddress parseAddress(String value)
+	{
+		int colon = value.lastIndexOf(':');
+		String host = colon < 0 ? null : value.substring(0, colon);
+		if (host != null && host.startsWith("[") && host.endsWith("]"))
+			host = host.substring(1, host.length() - 1);
+		
+		try
+		{
+			int port = Integer.parseInt(value.substring(colon + 1));
+			if (port <= 0 || port >= 65536)
+				return null;
+			
+			InetSocketAddress address = host == null || host.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+			return address.isUnresolved() ? null : address;
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Bind the listening socket.
+	 * 
+	 * @param backlog
+	 *            - Connections the operating system may queue before they are accepted
+	 * @throws IOException
+	 *             If the address cannot be bound, such as when another server already listens on it
+	 */
+	void open(int backlog) throws IOException
+	{
+		channel = ServerSocketChannel.open();
+		try
+		{
+			channel.bind(address, backlog);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Start the acceptor threads.
+	 * 
+	 * @param handler
+	 *            - Receiver of accepted connections
+	 */
+	void start(final Handler handler)
+	{
+		for (int i = 0; i < acceptorCount; i++)
+		{
+			Thread acceptor = new Thread(new Runnable() {
+				
+				@Override
+				public void run()
+				{
+					accept(handler);
+				}
+			}, "acceptor-" + address.getPort() + "-" + i);
+			
+			acceptors.add(acceptor);
+			acceptor.start();
+		}
+	}
+	
+	/**
+	 * Wait for every acceptor thread to finish, which happens once the listener is closed.
+	 * 
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	void join() throws InterruptedException
+	{
+		for (Thread acceptor : acceptors)
+			acceptor.join();
+	}
+	
+	/**
+	 * Stop listening.
+	 */
+	void close()
+	{
+		if (channel == null)
+			return;
+		
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Accept connections until the socket is closed. A failed accept does not stop the acceptor, since it is usually
+	 * brief, such as running out of file descriptors during a connection storm.
+	 */
+	private void accept(Handler handler)
+	{
+		while (channel.isOpen())
+			try
+			{
+				handler.accepted(channel.accept());
+			}
+			catch (ClosedChannelException e)
+			{
+				return;
+			}
+			catch (IOException e)
+			{
+				System.out.println("Could not accept a connection on " + this + ": " + e.getMessage());
+				try
+				{
+					Thread.sleep(ACCEPT_RETRY_MILLIS);
+				}
+				catch (InterruptedException interrupted)
+				{
+					return;
+				}
+			}
+	}
+	
+	@Override
+	public String toString()
+	{
+		return (address.getAddress().isAnyLocalAddress() ? "port " : address.getAddress().getHostAddress() + " port ") + address.getPort();
+	}
+}
@@ -0,0 +1,829 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import bashtalkcommon.protocol.*;
+
+/**
+ * Durable, append-only log of chat messages kept as a directory of segment files.
+ * 
+ * Each segment is named after the sequence number of its first message. {@code .log} holds the messages exactly as
+ * they are sent to a text client, one line each, and {@code .idx} holds a fixed-size entry per message with its
+ * position, length, and time. {@code .frm} holds the same messages pre-encoded as frames, indexed by {@code .fdx}.
+ * Since both data files match the bytes a client is sent, history can be copied from them straight to a socket as
+ * {@link Region}s. Segments written before frames were kept have no frame files and are read instead.
+ * 
+ * Appends are queued and written in batches by a background thread. Reads map the files into memory. Old segments
+ * are deleted whole once they pass the retention age or the log passes its size limit.
+ * 
+ * @version 1.0.0
+ */
+class MessageLog implements Runnable {
+	
+	/**
+	 * A logged message.
+	 */
+	static class Record {
+		
+		final long seq;
+		final long time;
+		final String msg;
+		
+		Record(long seq, long time, String msg)
+		{
+			this.seq = seq;
+			this.time = time;
+			this.msg = msg;
+		}
+	}
+	
+	/**
+	 * A run of consecutive messages in a segment file, stored exactly as a client is sent them.
+	 */
+	static class Region {
+		
+		final Path file;
+		final long position;
+		final long length;
+		final long fromSeq;
+		final long toSeq;
+		
+		Region(Path file, long position, long length, long fromSeq, long toSeq)
+		{
+			this.file = file;
+			this.position = position;
+			this.length = length;
+			this.fromSeq = fromSeq;
+			this.toSeq = toSeq;
+		}
+		
+		/**
+		 * Count the messages in this region.
+		 * 
+		 * @return Number of messages
+		 */
+		int messages()
+		{
+			return (int) (toSeq - fromSeq);
+		}
+	}
+	
+	private static final Charset CHARSET = Charset.defaultCharset();
+	
+	// Index entry: position (long), length (int), time (long)
+	private static final int INDEX_ENTRY_SIZE = 20;
+	
+	// Frame index entry: position (long), length (int)
+	private static final int FRAME_ENTRY_SIZE = 12;
+	private static final int MAX_BATCH = 1024;
+	private static final long RETENTION_CHECK_MILLIS = 60 * 1000;
+	
+	private final Path dir;
+	private final long segmentBytes;
+	private final long retentionMillis;
+	private final long retentionBytes;
+	private final long flushMillis;
+	
+	private final BlockingQueue<Record> queue;
+	
+	// Guards the segment table and the active segment's files
+	private final ReentrantLock lock;
+	private final TreeMap<Long, Segment> segments;
+	private Segment active;
+	
+	// Sequence number of the next record to be written; only the writer thread advances it
+	private long nextSeq;
+	
+	// Records below this sequence number were cleared before they were written
+	private volatile long clearedBefore;
+	private volatile boolean running;
+	private Thread writer;
+	
+	/**
+	 * Create a log in a directory. Call {@link #open()} before use.
+	 * 
+	 * @param dir
+	 *            - Directory holding the segment files
+	 * @param segmentBytes
+	 *            - Size at which a new segment is started
+	 * @param retentionMillis
+	 *            - Age after which a segment is deleted
+	 * @param retentionBytes
+	 *            - Total size above which the oldest segments are deleted
+	 * @param flushMillis
+	 *            - Longest time a message waits before it is written
+	 */
+	MessageLog(Path dir, long segmentBytes, long retentionMillis, long retentionBytes, long flushMillis)
+	{
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.retentionMillis = retentionMillis;
+		this.retentionBytes = retentionBytes;
+		this.flushMillis = flushMillis;
+		queue = new LinkedBlockingQueue<Record>();
+		lock = new ReentrantLock();
+		segments = new TreeMap<Long, Segment>();
+	}
+	
+	/**
+	 * Load the existing segments, repair a segment cut short by a crash, and start the writer thread.
+	 * 
+	 * @throws IOException
+	 *             If the directory cannot be read or written
+	 */
+	void open() throws IOException
+	{
+		Files.createDirectories(dir);
+		
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.idx"))
+		{
+			for (Path idx : files)
+			{
+				String name = idx.getFileName().toString();
+				try
+				{
+					long base = Long.parseLong(name.substring(0, name.length() - 4));
+					segments.put(base, Segment.load(dir, base));
+				}
+				catch (NumberFormatException e)
+				{
+					// Not one of ours
+				}
+			}
+		}
+		
+		if (segments.isEmpty())
+			active = Segment.create(dir, 0);
+		else
+		{
+			active = segments.lastEntry().getValue();
+			active.openForAppend();
+		}
+		segments.put(active.base, active);
+		
+		nextSeq = active.base + active.count;
+		clearedBefore = 0;
+		
+		running = true;
+		writer = new Thread(this, "message-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Get the sequence number the next logged message should receive.
+	 * 
+	 * @return Next sequence number
+	 */
+	long nextSeq()
+	{
+		lock.lock();
+		try
+		{
+			return active.base + active.count;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queue a message to be written. Messages may be queued out of order by concurrent senders; they are written in
+	 * sequence order.
+	 * 
+	 * @param seq
+	 *            - Sequence number of the message
+	 * @param msg
+	 *            - Message text
+	 */
+	void append(long seq, String msg)
+	{
+		queue.add(new Record(seq, System.currentTimeMillis(), msg));
+	}
+	
+	/**
+	 * Read written messages through memory-mapped segment files.
+	 * 
+	 * @param fromSeq
+	 *            - Sequence number of the first message wanted
+	 * @param max
+	 *            - Maximum number of messages to read
+	 * @return Messages in sequence order; empty if none are on disk
+	 * @throws IOException
+	 *             If a segment cannot be read
+	 */
+	List<Record> read(long fromSeq, int max) throws IOException
+	{
+		ArrayList<Record> records = new ArrayList<Record>();
+		
+		// Copy the segment table so the writer is not held up while files are mapped
+		List<Segment> snapshot = new ArrayList<Segment>();
+		List<Long> counts = new ArrayList<Long>();
+		List<Long> sizes = new ArrayList<Long>();
+		lock.lock();
+		try
+		{
+			Long first = segments.floorKey(fromSeq);
+			for (Segment segment : segments.tailMap(first == null ? fromSeq : first, true).values())
+			{
+				snapshot.add(segment);
+				counts.add(segment.count);
+				sizes.add(segment.logSize);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		for (int i = 0; i < snapshot.size() && records.size() < max; i++)
+		{
+			Segment segment = snapshot.get(i);
+			long count = counts.get(i);
+			long start = Math.max(fromSeq, segment.base) - segment.base;
+			if (start >= count)
+				continue;
+			
+			try (FileChannel idx = FileChannel.open(segment.idx, StandardOpenOption.READ);
+					FileChannel log = FileChannel.open(segment.log, StandardOpenOption.READ))
+			{
+				MappedByteBuffer index = idx.map(FileChannel.MapMode.READ_ONLY, 0, count * INDEX_ENTRY_SIZE);
+				MappedByteBuffer data = log.map(FileChannel.MapMode.READ_ONLY, 0, sizes.get(i));
+				
+				byte[] bytes = new byte[256];
+				for (long n = start; n < count && records.size() < max; n++)
+				{
+					int at = (int) (n * INDEX_ENTRY_SIZE);
+					int position = (int) index.getLong(at);
+					int length = index.getInt(at + 8);
+					long time = index.getLong(at + 12);
+					
+					if (bytes.length < length)
+						bytes = new byte[length];
+					data.position(position);
+					data.get(bytes, 0, length);
+					
+					records.add(new Record(segment.base + n, time, decode(bytes, length)));
+				}
+			}
+			catch (NoSuchFileException e)
+			{
+				// Deleted by retention after the table was copied
+			}
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Read the most recent written messages.
+	 * 
+	 * @param max
+	 *            - Maximum number of messages to read
+	 * @return Up to max of the newest messages, oldest first
+	 * @throws IOException
+	 *             If a segment cannot be read
+	 */
+	List<Record> tail(int max) throws IOException
+	{
+		return read(Math.max(0, nextSeq() - max), max);
+	}
+	
+	/**
+	 * Find written messages as runs of bytes that can be sent to a client without decoding them. Like
+	 * {@link #read(long, int)}, messages that were cleared or retired are skipped. Stops before the first message that
+	 * is not stored in the wanted form; the caller reads the rest some other way.
+	 * 
+	 * @param fromSeq
+	 *            - Sequence number of the first message wanted
+	 * @param toSeq
+	 *            - Sequence number after the last message wanted
+	 * @param frames
+	 *            - Whether the client takes frames rather than lines
+	 * @return Regions in sequence order
+	 * @throws IOException
+	 *             If an index cannot be read
+	 */
+	List<Region> regions(long fromSeq, long toSeq, boolean frames) throws IOException
+	{
+		ArrayList<Region> regions = new ArrayList<Region>();
+		if (fromSeq >= toSeq)
+			return regions;
+		
+		List<Segment> snapshot = new ArrayList<Segment>();
+		List<Long> counts = new ArrayList<Long>();
+		List<Long> available = new ArrayList<Long>();
+		lock.lock();
+		try
+		{
+			Long first = segments.floorKey(fromSeq);
+			for (Segment segment : segments.subMap(first == null ? fromSeq : first, true, toSeq, false).values())
+			{
+				snapshot.add(segment);
+				counts.add(segment.count);
+				available.add(frames ? segment.frameCount : segment.count);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		for (int i = 0; i < snapshot.size(); i++)
+		{
+			Segment segment = snapshot.get(i);
+			long start = Math.max(fromSeq, segment.base) - segment.base;
+			long end = Math.min(available.get(i), toSeq - segment.base);
+			
+			if (start < end)
+				try (FileChannel index = FileChannel.open(frames ? segment.fdx : segment.idx, StandardOpenOption.READ))
+				{
+					int entrySize = frames ? FRAME_ENTRY_SIZE : INDEX_ENTRY_SIZE;
+					ByteBuffer entry = ByteBuffer.allocate(entrySize);
+					
+					index.read(entry, start * entrySize);
+					long position = entry.getLong(0);
+					
+					entry.clear();
+					index.read(entry, (end - 1) * entrySize);
+					long limit = entry.getLong(0) + entry.getInt(8);
+					
+					regions.add(new Region(frames ? segment.frm : segment.log, position, limit - position, segment.base + start, segment.base + end));
+				}
+				catch (NoSuchFileException e)
+				{
+					// Deleted by retention after the table was copied
+				}
+			
+			// Part of the range is in this segment but not stored as frames
+			if (Math.max(available.get(i), start) < Math.min(counts.get(i), toSeq - segment.base))
+				break;
+		}
+		
+		return regions;
+	}
+	
+	/**
+	 * Delete every message logged so far. Messages queued but not yet written are dropped as well.
+	 * 
+	 * @param before
+	 *            - Sequence number below which messages are cleared
+	 */
+	void clear(long before)
+	{
+		clearedBefore = before;
+		
+		lock.lock();
+		try
+		{
+			// Start an empty segment and drop every older one
+			rollSegment();
+			Iterator<Segment> it = segments.values().iterator();
+			while (it.hasNext())
+			{
+				Segment segment = it.next();
+				if (segment != active)
+				{
+					segment.delete();
+					it.remove();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Write whatever is queued and stop the writer thread.
+	 */
+	void close()
+	{
+		running = false;
+		writer.interrupt();
+		try
+		{
+			writer.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	@Override
+	public void run()
+	{
+		// Records that arrived ahead of a lower sequence number still in flight
+		PriorityQueue<Record> waiting = new PriorityQueue<Record>(new Comparator<Record>() {
+			
+			@Override
+			public int compare(Record a, Record b)
+			{
+				return Long.compare(a.seq, b.seq);
+			}
+		});
+		ArrayList<Record> batch = new ArrayList<Record>();
+		long lastRetentionCheck = 0;
+		
+		while (running || !queue.isEmpty())
+		{
+			try
+			{
+				// Wait for the first record, then give others a moment to join the batch
+				Record first = queue.poll(RETENTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+				if (first != null)
+				{
+					waiting.add(first);
+					if (flushMillis > 0 && running)
+						Thread.sleep(flushMillis);
+					queue.drainTo(waiting, MAX_BATCH);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				queue.drainTo(waiting);
+			}
+			
+			// Take the records that continue the sequence without a gap
+			batch.clear();
+			while (!waiting.isEmpty() && waiting.peek().seq <= nextSeq)
+			{
+				Record record = waiting.poll();
+				if (record.seq == nextSeq)
+				{
+					nextSeq++;
+					if (record.seq >= clearedBefore)
+						batch.add(record);
+				}
+			}
+			
+			try
+			{
+				if (!batch.isEmpty())
+					write(batch);
+				
+				long now = System.currentTimeMillis();
+				if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS)
+				{
+					lastRetentionCheck = now;
+					applyRetention(now);
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		lock.lock();
+		try
+		{
+			active.closeFiles();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Append a batch of records to the active segment with one gathering write per file.
+	 */
+	private void write(List<Record> batch) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			// Records are numbered by their position in the segment, so a gap (from a clear) starts a new one, as
+			// does a segment from before frames were kept
+			if (batch.get(0).seq != active.base + active.count || active.logSize >= segmentBytes || active.frameCount != active.count)
+				rollSegment(batch.get(0).seq);
+			
+			ByteBuffer[] data = new ByteBuffer[batch.size()];
+			ByteBuffer[] frames = new ByteBuffer[batch.size()];
+			ByteBuffer index = ByteBuffer.allocate(batch.size() * INDEX_ENTRY_SIZE);
+			ByteBuffer frameIndex = ByteBuffer.allocate(batch.size() * FRAME_ENTRY_SIZE);
+			long position = active.logSize;
+			long framePosition = active.frmSize;
+			for (int i = 0; i < batch.size(); i++)
+			{
+				Record record = batch.get(i);
+				data[i] = encode(record.msg);
+				index.putLong(position).putInt(data[i].remaining()).putLong(record.time);
+				position += data[i].remaining();
+				
+				frames[i] = new Frame(Frame.TYPE_CHAT, record.seq, record.time, OutboundMessage.senderOf(record.msg), "", record.msg).encode();
+				frameIndex.putLong(framePosition).putInt(frames[i].remaining());
+				framePosition += frames[i].remaining();
+			}
+			index.flip();
+			frameIndex.flip();
+			
+			// Data goes first so an index entry never points past the end of the log
+			try
+			{
+				while (data[data.length - 1].hasRemaining())
+					active.logChannel.write(data);
+				while (frames[frames.length - 1].hasRemaining())
+					active.frmChannel.write(frames);
+				active.logChannel.force(false);
+				active.frmChannel.force(false);
+				while (index.hasRemaining())
+					active.idxChannel.write(index);
+				while (frameIndex.hasRemaining())
+					active.fdxChannel.write(frameIndex);
+				active.idxChannel.force(false);
+				active.fdxChannel.force(false);
+			}
+			catch (IOException e)
+			{
+				// Part of the batch may have landed; cut it off so the next write starts where the indexes expect
+				try
+				{
+					active.rewind();
+				}
+				catch (IOException suppressed)
+				{
+					e.addSuppressed(suppressed);
+				}
+				throw e;
+			}
+			
+			active.logSize = position;
+			active.frmSize = framePosition;
+			active.count += batch.size();
+			active.frameCount = active.count;
+			active.lastTime = batch.get(batch.size() - 1).time;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Delete whole segments that are too old or that push the log over its size limit. The active segment is always
+	 * kept.
+	 */
+	private void applyRetention(long now) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			long total = 0;
+			for (Segment segment : segments.values())
+				total += segment.size();
+			
+			Iterator<Segment> it = segments.values().iterator();
+			while (it.hasNext())
+			{
+				Segment segment = it.next();
+				if (segment == active)
+					break;
+				
+				if (now - segment.lastTime > retentionMillis || total > retentionBytes)
+				{
+					total -= segment.size();
+					segment.delete();
+					it.remove();
+				}
+				else
+					break;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Close the active segment and start a new one after it. Caller must hold the lock.
+	 */
+	private void rollSegment() throws IOException
+	{
+		rollSegment(active.base + active.count);
+	}
+	
+	/**
+	 * Close the active segment and start a new one at the given sequence number. Caller must hold the lock.
+	 */
+	private void rollSegment(long base) throws IOException
+	{
+		// Nothing written yet; reuse the active segment if it starts in the right place
+		if (active.count == 0 && active.base == base)
+			return;
+		
+		active.closeFiles();
+		if (active.count == 0)
+		{
+			active.delete();
+			segments.remove(active.base);
+		}
+		
+		active = Segment.create(dir, base);
+		segments.put(base, active);
+		
+		// Retention may now drop the segment just closed
+		applyRetention(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Encode a message as it is sent to a text client.
+	 */
+	private static ByteBuffer encode(String msg)
+	{
+		return ByteBuffer.wrap(OutboundMessage.encodeLine(msg));
+	}
+	
+	/**
+	 * Decode a stored line, dropping its terminator.
+	 */
+	private static String decode(byte[] bytes, int length)
+	{
+		while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r'))
+			length--;
+		return new String(bytes, 0, length, CHARSET);
+	}
+	
+	/**
+	 * One segment of the log: its files, how many records it holds, and where the next record goes.
+	 */
+	private static class Segment {
+		
+		final long base;
+		final Path log;
+		final Path idx;
+		final Path frm;
+		final Path fdx;
+		FileChannel logChannel;
+		FileChannel idxChannel;
+		FileChannel frmChannel;
+		FileChannel fdxChannel;
+		long logSize;
+		long frmSize;
+		long count;
+		
+		// Records also stored as frames; fewer than count only in a segment from before frames were kept
+		long frameCount;
+		long lastTime;
+		
+		private Segment(Path dir, long base)
+		{
+			this.base = base;
+			String name = String.format("%020d", base);
+			log = dir.resolve(name + ".log");
+			idx = dir.resolve(name + ".idx");
+			frm = dir.resolve(name + ".frm");
+			fdx = dir.resolve(name + ".fdx");
+		}
+		
+		/**
+		 * Count the bytes this segment takes up on disk.
+		 */
+		long size()
+		{
+			return logSize + count * INDEX_ENTRY_SIZE + frmSize + frameCount * FRAME_ENTRY_SIZE;
+		}
+		
+		/**
+		 * Create an empty segment, open for appending.
+		 */
+		static Segment create(Path dir, long base) throws IOException
+		{
+			Segment segment = new Segment(dir, base);
+			segment.lastTime = System.currentTimeMillis();
+			segment.openForAppend();
+			return segment;
+		}
+		
+		/**
+		 * Load an existing segment, dropping any index entries whose data never made it to disk.
+		 */
+		static Segment load(Path dir, long base) throws IOException
+		{
+			Segment segment = new Segment(dir, base);
+			long dataSize = Files.exists(segment.log) ? Files.size(segment.log) : 0;
+			long entries = Files.size(segment.idx) / INDEX_ENTRY_SIZE;
+			segment.lastTime = Files.getLastModifiedTime(segment.idx).toMillis();
+			
+			try (FileChannel idx = FileChannel.open(segment.idx, StandardOpenOption.READ))
+			{
+				ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+				
+				// Walk back from the last entry to the last one that is complete
+				while (entries > 0)
+				{
+					entry.clear();
+					idx.read(entry, (entries - 1) * INDEX_ENTRY_SIZE);
+					long end = entry.getLong(0) + entry.getInt(8);
+					if (end <= dataSize)
+					{
+						segment.logSize = end;
+						segment.lastTime = entry.getLong(12);
+						break;
+					}
+					entries--;
+				}
+			}
+			segment.count = entries;
+			
+			// Frames are only usable for records that made it into both indexes
+			if (Files.exists(segment.fdx))
+			{
+				long frameData = Files.exists(segment.frm) ? Files.size(segment.frm) : 0;
+				long frames = Math.min(entries, Files.size(segment.fdx) / FRAME_ENTRY_SIZE);
+				
+				try (FileChannel fdx = FileChannel.open(segment.fdx, StandardOpenOption.READ))
+				{
+					ByteBuffer entry = ByteBuffer.allocate(FRAME_ENTRY_SIZE);
+					while (frames > 0)
+					{
+						entry.clear();
+						fdx.read(entry, (frames - 1) * FRAME_ENTRY_SIZE);
+						long end = entry.getLong(0) + entry.getInt(8);
+						if (end <= frameData)
+						{
+							segment.frmSize = end;
+							break;
+						}
+						frames--;
+					}
+				}
+				segment.frameCount = frames;
+			}
+			
+			return segment;
+		}
+		
+		/**
+		 * Open the files for appending, cutting off anything past the last complete record.
+		 */
+		void openForAppend() throws IOException
+		{
+			logChannel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			idxChannel = FileChannel.open(idx, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			frmChannel = FileChannel.open(frm, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			fdxChannel = FileChannel.open(fdx, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			rewind();
+		}
+		
+		/**
+		 * Cut the open files back to the last complete record and continue writing from there.
+		 */
+		void rewind() throws IOException
+		{
+			logChannel.truncate(logSize);
+			idxChannel.truncate(count * INDEX_ENTRY_SIZE);
+			frmChannel.truncate(frmSize);
+			fdxChannel.truncate(frameCount * FRAME_ENTRY_SIZE);
+			logChannel.position(logSize);
+			idxChannel.position(count * INDEX_ENTRY_SIZE);
+			frmChannel.position(frmSize);
+			fdxChannel.position(frameCount * FRAME_ENTRY_SIZE);
+		}
+		
+		void closeFiles() throws IOException
+		{
+			if (logChannel != null)
+				logChannel.close();
+			if (idxChannel != null)
+				idxChannel.close();
+			if (frmChannel != null)
+				frmChannel.close();
+			if (fdxChannel != null)
+				fdxChannel.close();
+			logChannel = null;
+			idxChannel = null;
+			frmChannel = null;
+			fdxChannel = null;
+		}
+		
+		void delete() throws IOException
+		{
+			closeFiles();
+			Files.deleteIfExists(log);
+			Files.deleteIfExists(idx);
+			Files.deleteIfExists(frm);
+			Files.deleteIfExists(fdx);
+		}
+	}
+}
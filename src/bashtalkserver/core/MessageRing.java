@@ -0,0 +1,209 @@
+package bashtalkserver.core;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fixed-capacity ring of recent messages, used as the server's message history. Any number of threads may add at
+ * once without locking: each claims a sequence number and publishes into the slot for that number. Readers take a
+ * snapshot by walking the slots of the most recent sequence numbers, skipping any that are mid-write or already
+ * overwritten. Besides the count, the ring is bounded by the encoded size of the messages it holds: an add that
+ * takes the total over the limit evicts the oldest messages until it fits again.
+ * 
+ * @version 1.0.0
+ */
+class MessageRing {
+	
+	/**
+	 * A message with the sequence number it was added under.
+	 */
+	static class Entry {
+		
+		final long seq;
+		final String msg;
+		final int size;
+		
+		Entry(long seq, String msg)
+		{
+			this.seq = seq;
+			this.msg = msg;
+			size = msg.getBytes(CHARSET).length;
+		}
+	}
+	
+	private static final Charset CHARSET = Charset.defaultCharset();
+	
+	private final int capacity;
+	private final long maxBytes;
+	private final AtomicReferenceArray<Entry> slots;
+	
+	// Next sequence number to hand out
+	private final AtomicLong next;
+	
+	// Entries below this sequence number were evicted to stay within the byte limit
+	private final AtomicLong low;
+	
+	// Encoded size of the entries currently in the slots; each entry is added once when stored and taken off once
+	// by whichever compare-and-set removes it from its slot
+	private final AtomicLong bytes;
+	
+	// Entries below this sequence number were cleared
+	private volatile long floor;
+	
+	/**
+	 * Create an empty ring.
+	 * 
+	 * @param capacity
+	 *            - Maximum number of messages kept
+	 * @param maxBytes
+	 *            - Maximum total encoded size of the messages kept, in bytes
+	 * @param firstSeq
+	 *            - Sequence number of the first message added
+	 */
+	MessageRing(int capacity, long maxBytes, long firstSeq)
+	{
+		this.capacity = capacity;
+		this.maxBytes = maxBytes;
+		slots = new AtomicReferenceArray<Entry>(capacity);
+		next = new AtomicLong(firstSeq);
+		low = new AtomicLong(Math.max(0, firstSeq - capacity));
+		bytes = new AtomicLong();
+		floor = 0;
+	}
+	
+	/**
+	 * Add a message, overwriting the oldest once the ring is full and evicting the oldest while the messages kept
+	 * are over the byte limit. The message just added is never evicted by its own add, so a single message larger
+	 * than the limit is still kept until the next one.
+	 * 
+	 * @param msg
+	 *            - Message to add
+	 * @return Sequence number of the message
+	 */
+	long add(String msg)
+	{
+		long seq = next.getAndIncrement();
+		Entry entry = new Entry(seq, msg);
+		int slot = (int) (seq % capacity);
+		
+		// A writer a full lap ahead may already own the slot; never replace a newer entry with an older one
+		Entry current;
+		do
+		{
+			current = slots.get(slot);
+			if (current != null && current.seq > seq)
+				return seq;
+		} while (!slots.compareAndSet(slot, current, entry));
+		
+		bytes.addAndGet(current == null ? entry.size : entry.size - current.size);
+		
+		// An eviction may have passed this number before the entry landed; take it back out if so
+		if (seq < low.get() && slots.compareAndSet(slot, entry, null))
+			bytes.addAndGet(-entry.size);
+		
+		evict(seq);
+		return seq;
+	}
+	
+	/**
+	 * Evict the oldest entries until the ones kept fit within the byte limit.
+	 * 
+	 * @param newest
+	 *            - Sequence number of the entry just added, which is left in place
+	 */
+	private void evict(long newest)
+	{
+		while (bytes.get() > maxBytes)
+		{
+			long oldest = low.get();
+			
+			// Numbers lapped or cleared since the last eviction hold nothing to evict; skip straight past them
+			long lowest = Math.max(floor, newest + 1 - capacity);
+			if (oldest < lowest)
+			{
+				low.compareAndSet(oldest, lowest);
+				continue;
+			}
+			
+			if (oldest >= newest)
+				return;
+			if (!low.compareAndSet(oldest, oldest + 1))
+				continue;
+			
+			int slot = (int) (oldest % capacity);
+			Entry entry = slots.get(slot);
+			if (entry != null && entry.seq == oldest && slots.compareAndSet(slot, entry, null))
+				bytes.addAndGet(-entry.size);
+		}
+	}
+	
+	/**
+	 * Put back a message from an earlier run under its original sequence number. Only for use before any message is
+	 * added.
+	 * 
+	 * @param seq
+	 *            - Sequence number of the message; must be below the first sequence number of this ring
+	 * @param msg
+	 *            - Message to restore
+	 */
+	void restore(long seq, String msg)
+	{
+		Entry entry = new Entry(seq, msg);
+		Entry current = slots.getAndSet((int) (seq % capacity), entry);
+		bytes.addAndGet(current == null ? entry.size : entry.size - current.size);
+		evict(seq);
+	}
+	
+	/**
+	 * Take a snapshot of the retained entries, oldest first.
+	 * 
+	 * @return Retained entries
+	 */
+	List<Entry> entries()
+	{
+		long end = next.get();
+		long start = Math.max(Math.max(floor, low.get()), end - capacity);
+		
+		ArrayList<Entry> entries = new ArrayList<Entry>((int) Math.max(0, end - start));
+		for (long seq = start; seq < end; seq++)
+		{
+			Entry entry = slots.get((int) (seq % capacity));
+			
+			// Skip a slot that is still being written, was evicted or was lapped since the walk began
+			if (entry == null || entry.seq != seq)
+				continue;
+			
+			entries.add(entry);
+		}
+		
+		return entries;
+	}
+	
+	/**
+	 * Forget every message added so far.
+	 */
+	void clear()
+	{
+		long end = next.get();
+		floor = end;
+		
+		// Release the cleared messages for garbage collection unless a newer one already took the slot
+		for (int slot = 0; slot < capacity; slot++)
+		{
+			Entry current = slots.get(slot);
+			if (current != null && current.seq < end && slots.compareAndSet(slot, current, null))
+				bytes.addAndGet(-current.size);
+		}
+	}
+	
+	/**
+	 * Get the sequence number the next message will receive.
+	 * 
+	 * @return Next sequence number
+	 */
+	long nextSeq()
+	{
+		return next.get();
+	}
+}
@@ -0,0 +1,250 @@
+package bashtalkserver.core;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.management.*;
+
+import bashtalkcommon.metrics.*;
+
+/**
+ * Named measurements of what the server is doing. Counters say how often something happened since the server started
+ * and are cheap to update from any thread. Gauges read a current level, such as queue depth, only when asked.
+ * Histograms hold the distribution of durations recorded in nanoseconds.
+ * 
+ * Everything can be read as one sorted table, which is what /stats prints and what JMX sees.
+ * 
+ * @version 1.0.0
+ */
+class Metrics {
+	
+	// Percentiles reported for every histogram, and the attribute suffixes they are reported under
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+	
+	private final ConcurrentHashMap<String, LongAdder> counters;
+	private final ConcurrentHashMap<String, LongSupplier> gauges;
+	private final ConcurrentHashMap<String, Histogram> histograms;
+	
+	Metrics()
+	{
+		counters = new ConcurrentHashMap<String, LongAdder>();
+		gauges = new ConcurrentHashMap<String, LongSupplier>();
+		histograms = new ConcurrentHashMap<String, Histogram>();
+	}
+	
+	/**
+	 * Get a counter, creating it if needed.
+	 * 
+	 * @param name
+	 *            - Name of the counter
+	 * @return Counter with the name
+	 */
+	LongAdder counter(String name)
+	{
+		LongAdder counter = counters.get(name);
+		if (counter == null)
+			counter = counters.computeIfAbsent(name, new Function<String, LongAdder>() {
+				
+				@Override
+				public LongAdder apply(String key)
+				{
+					return new LongAdder();
+				}
+			});
+		return counter;
+	}
+	
+	/**
+	 * Add one to a counter.
+	 * 
+	 * @param name
+	 *            - Name of the counter
+	 */
+	void increment(String name)
+	{
+		counter(name).increment();
+	}
+	
+	/**
+	 * Add to a counter.
+	 * 
+	 * @param name
+	 *            - Name of the counter
+	 * @param amount
+	 *            - Amount to add
+	 */
+	void add(String name, long amount)
+	{
+		counter(name).add(amount);
+	}
+	
+	/**
+	 * Add a gauge, replacing any gauge with the same name. The gauge is read whenever the metrics are, from whatever
+	 * thread reads them, so it must be safe to call from any thread.
+	 * 
+	 * @param name
+	 *            - Name of the gauge
+	 * @param gauge
+	 *            - Reads the current level
+	 */
+	void gauge(String name, LongSupplier gauge)
+	{
+		gauges.put(name, gauge);
+	}
+	
+	/**
+	 * Get a histogram, creating it if needed.
+	 * 
+	 * @param name
+	 *            - Name of the histogram
+	 * @return Histogram with the name
+	 */
+	Histogram histogram(String name)
+	{
+		Histogram histogram = histograms.get(name);
+		if (histogram == null)
+			histogram = histograms.computeIfAbsent(name, new Function<String, Histogram>() {
+				
+				@Override
+				public Histogram apply(String key)
+				{
+					return new Histogram();
+				}
+			});
+		return histogram;
+	}
+	
+	/**
+	 * Read every counter.
+	 * 
+	 * @return Counter values sorted by name
+	 */
+	SortedMap<String, Long> counters()
+	{
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet())
+			values.put(entry.getKey(), entry.getValue().sum());
+		return values;
+	}
+	
+	/**
+	 * Read every counter, gauge and histogram. A histogram appears as its count, mean, percentiles and maximum, with
+	 * durations in microseconds, under its name followed by ".count", ".mean", ".p50" and so on.
+	 * 
+	 * @return Values sorted by name
+	 */
+	SortedMap<String, Long> values()
+	{
+		SortedMap<String, Long> values = counters();
+		
+		for (Map.Entry<String, LongSupplier> entry : gauges.entrySet())
+			try
+			{
+				values.put(entry.getKey(), entry.getValue().getAsLong());
+			}
+			catch (RuntimeException e)
+			{
+				// A gauge over something torn down mid-read; leave it out this time
+			}
+		
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+		{
+			String name = entry.getKey();
+			Histogram histogram = entry.getValue();
+			
+			values.put(name + ".count", histogram.count());
+			values.put(name + ".mean", histogram.mean() / 1000);
+			for (int i = 0; i < PERCENTILES.length; i++)
+				values.put(name + "." + PERCENTILE_NAMES[i], histogram.percentile(PERCENTILES[i]) / 1000);
+			values.put(name + ".max", histogram.max() / 1000);
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Format every value for display, one per line.
+	 * 
+	 * @return Table of names and values
+	 */
+	String report()
+	{
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, Long> entry : values().entrySet())
+			report.append("\n\t").append(entry.getKey()).append(" = ").append(entry.getValue());
+		return report.toString();
+	}
+	
+	/**
+	 * Publish the metrics through the platform MBean server, so JMX tools such as jconsole can watch them. Every value
+	 * becomes a read-only attribute.
+	 * 
+	 * @param objectName
+	 *            - Name to register the bean under
+	 * @throws JMException
+	 *             If the bean cannot be registered
+	 */
+	void register(String objectName) throws JMException
+	{
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(objectName));
+	}
+	
+	/**
+	 * JMX view of the metrics. Attributes come and go as metrics are created, so the bean describes itself anew
+	 * each time it is asked.
+	 */
+	private class Bean implements DynamicMBean {
+		
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			Long value = values().get(attribute);
+			if (value == null)
+				throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+		
+		@Override
+		public AttributeList getAttributes(String[] attributes)
+		{
+			SortedMap<String, Long> values = values();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes)
+				if (values.containsKey(attribute))
+					list.add(new Attribute(attribute, values.get(attribute)));
+			return list;
+		}
+		
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+		
+		@Override
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+		
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+		{
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+		
+		@Override
+		public MBeanInfo getMBeanInfo()
+		{
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (String name : values().keySet())
+				attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+			
+			return new MBeanInfo(Metrics.class.getName(), "BashTalk server metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import bashtalkcommon.protocol.*;
+
+/**
+ * A message on its way to one or more clients. The same instance is handed to every recipient of a broadcast, and is
+ * encoded once per wire format rather than once per recipient: every client using a format is queued the same byte
+ * array. The arrays are shared and must never be modified.
+ * 
+ * In the line formats a message never writes a line of its own choosing: any line after its first is indented, so a
+ * multi-line chat message cannot pass for a protocol line such as "banned" or "/ping".
+ * 
+ * @version 1.0.0
+ */
+class OutboundMessage {
+	
+	/**
+	 * How a client wants messages written.
+	 */
+	enum Format {
+		
+		/** Plain lines, as understood by every client */
+		TEXT,
+		
+		/** Lines, with cached messages stamped "@seq " and every other line "@- " */
+		SEQUENCED_TEXT,
+		
+		/** Binary frames */
+		FRAME
+	}
+	
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+	
+	final long seq;
+	final long time;
+	final String text;
+	
+	// Encoded bytes by format, filled in on first use
+	private final AtomicReferenceArray<byte[]> encodings;
+	
+	/**
+	 * Create a message.
+	 * 
+	 * @param seq
+	 *            - Sequence number of a cached message, or -1
+	 * @param text
+	 *            - Message text
+	 */
+	OutboundMessage(long seq, String text)
+	{
+		this.seq = seq;
+		this.text = text;
+		time = System.currentTimeMillis();
+		encodings = new AtomicReferenceArray<byte[]>(Format.values().length);
+	}
+	
+	/**
+	 * Get this message as it is written to a client, encoding it if no other client has needed the same format yet.
+	 * 
+	 * @param target
+	 *            - Format negotiated by the client
+	 * @return Shared encoded bytes; must not be modified
+	 * @throws IOException
+	 *             If the message cannot be represented in the format
+	 */
+	byte[] encode(Format target) throws IOException
+	{
+		byte[] bytes = encodings.get(target.ordinal());
+		if (bytes != null)
+			return bytes;
+		
+		// Two threads racing here produce identical bytes, so either result may win
+		bytes = encodeAs(target);
+		encodings.set(target.ordinal(), bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Encode this message in a format.
+	 */
+	private byte[] encodeAs(Format target) throws IOException
+	{
+		switch (target)
+		{
+			case SEQUENCED_TEXT:
+				// Every line is stamped, so a line of chat starting with '@' cannot pass for a stamp
+				if (seq >= 0)
+					return encodeLine("@" + seq + " " + text);
+				return encodeLine("@- " + text);
+			
+			case FRAME:
+				return new Frame(seq >= 0 ? Frame.TYPE_CHAT : Frame.TYPE_TEXT, seq, time, sender(), "", text).encode().array();
+			
+			default:
+				return encodeLine(text);
+		}
+	}
+	
+	/**
+	 * Find the sender of this message, if it is a cached chat message.
+	 */
+	private String sender()
+	{
+		return seq < 0 ? "" : senderOf(text);
+	}
+	
+	/**
+	 * Find the sender of a chat message of the form "[HH:mm] &lt;user&gt; message".
+	 * 
+	 * @param text
+	 *            - Message text
+	 * @return Sender, or an empty string if the text is not a chat message
+	 */
+	static String senderOf(String text)
+	{
+		if (!text.startsWith("["))
+			return "";
+		
+		int open = text.indexOf("] <");
+		int close = open < 0 ? -1 : text.indexOf('>', open + 3);
+		return close < 0 ? "" : text.substring(open + 3, close);
+	}
+	
+	/**
+	 * Check whether text would span more than one line.
+	 * 
+	 * @param text
+	 *            - Text to check
+	 * @return Whether it holds a carriage return or line feed
+	 */
+	static boolean hasLineBreak(String text)
+	{
+		return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+	}
+	
+	/**
+	 * Make text safe to send as lines. Every kind of line break becomes the platform's, and each line after the first
+	 * is indented unless it already is. Text that is already safe is returned as it is.
+	 * 
+	 * @param text
+	 *            - Message text
+	 * @return Text whose lines after the first all start with whitespace
+	 */
+	static String foldLines(String text)
+	{
+		if (!hasLineBreak(text))
+			return text;
+		
+		String[] lines = text.split("\r\n|\r|\n", -1);
+		StringBuilder folded = new StringBuilder(text.length() + lines.length * 2).append(lines[0]);
+		for (int i = 1; i < lines.length; i++)
+		{
+			folded.append(System.lineSeparator());
+			if (!lines[i].startsWith(" ") && !lines[i].startsWith("\t"))
+				folded.append('\t');
+			folded.append(lines[i]);
+		}
+		return folded.toString();
+	}
+	
+	/**
+	 * Encode a line with its terminator, folding any line breaks within it.
+	 * 
+	 * @param line
+	 *            - Message text
+	 * @return Encoded bytes
+	 */
+	static byte[] encodeLine(String line)
+	{
+		byte[] body = foldLines(line).getBytes(CHARSET);
+		byte[] bytes = Arrays.copyOf(body, body.length + LINE_SEPARATOR.length);
+		System.arraycopy(LINE_SEPARATOR, 0, bytes, body.length, LINE_SEPARATOR.length);
+		return bytes;
+	}
+}
@@ -0,0 +1,290 @@
+package bashtalkserver.core;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Bounded queue of messages waiting to be written to one client. Any thread may offer; the client's writer drains
+ * it. Offers never block, so a slow reader cannot hold up the thread sending to it.
+ * 
+ * The queue is bounded by message count, by queued bytes, and by how long its oldest message has waited. What to do
+ * once a bound is hit is up to the caller; {@link #compact(int)} makes room by discarding the oldest messages.
+ * 
+ * The writer removes messages in batches, so that several can go out in one write.
+ * 
+ * @param <E>
+ *            - Type of queued message
+ * @version 1.0.0
+ */
+class OutboundQueue<E> {
+	
+	/** Most messages a writer removes at once; well below the buffer count a gathering write accepts */
+	static final int MAX_BATCH = 128;
+	
+	private final int maxMessages;
+	private final long maxBytes;
+	private final long maxLagNanos;
+	private final ArrayDeque<Entry<E>> items;
+	private long bytes;
+	
+	// A lock rather than synchronized so a virtual thread waiting in takeBatch() does not pin its carrier
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private boolean closed;
+	
+	/**
+	 * Create an empty queue.
+	 * 
+	 * @param maxMessages
+	 *            - Maximum number of queued messages
+	 * @param maxBytes
+	 *            - Maximum total size of queued messages
+	 * @param maxLagMillis
+	 *            - Maximum time the oldest message may wait
+	 */
+	OutboundQueue(int maxMessages, long maxBytes, long maxLagMillis)
+	{
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.maxLagNanos = maxLagMillis * 1000000L;
+		items = new ArrayDeque<Entry<E>>();
+		bytes = 0;
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		closed = false;
+	}
+	
+	/**
+	 * Queue a message without waiting.
+	 * 
+	 * @param item
+	 *            - Message to queue
+	 * @param size
+	 *            - Size of the message in bytes
+	 * @return Whether the message was queued; false if the queue is closed or a bound would be exceeded
+	 */
+	boolean offer(E item, int size)
+	{
+		lock.lock();
+		try
+		{
+			if (closed || !fits(size, System.nanoTime()))
+				return false;
+			
+			items.addLast(new Entry<E>(item, size));
+			bytes += size;
+			notEmpty.signal();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Remove a batch of the oldest messages, waiting until at least one is queued. Once one is, the writer may linger
+	 * for more to arrive, trading latency for fewer, larger writes.
+	 * 
+	 * @param batch
+	 *            - Array to fill with messages, oldest first
+	 * @param maxBytes
+	 *            - Most bytes to remove, unless the oldest message alone is larger
+	 * @param lingerNanos
+	 *            - Longest time to wait for the batch to fill once the first message is queued
+	 * @return Number of messages removed, or 0 once the queue is closed
+	 * @throws InterruptedException
+	 *             If the writer is interrupted while waiting
+	 */
+	int takeBatch(E[] batch, long maxBytes, long lingerNanos) throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			while (items.isEmpty() && !closed)
+				notEmpty.await();
+			
+			long remaining = lingerNanos;
+			while (remaining > 0 && !closed && items.size() < batch.length && bytes < maxBytes)
+				remaining = notEmpty.awaitNanos(remaining);
+			
+			return removeBatch(batch, maxBytes);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Remove a batch of the oldest messages without waiting.
+	 * 
+	 * @param batch
+	 *            - Array to fill with messages, oldest first
+	 * @param maxBytes
+	 *            - Most bytes to remove, unless the oldest message alone is larger
+	 * @return Number of messages removed
+	 */
+	int pollBatch(E[] batch, long maxBytes)
+	{
+		lock.lock();
+		try
+		{
+			return removeBatch(batch, maxBytes);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Count the queued messages.
+	 * 
+	 * @return Number of queued messages
+	 */
+	int size()
+	{
+		lock.lock();
+		try
+		{
+			return items.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Count the queued bytes.
+	 * 
+	 * @return Total size of queued messages
+	 */
+	long bytes()
+	{
+		lock.lock();
+		try
+		{
+			return bytes;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Discard the oldest messages until a message of the given size fits within every bound.
+	 * 
+	 * @param size
+	 *            - Size in bytes of the message that needs room
+	 * @return Number of messages discarded
+	 */
+	int compact(int size)
+	{
+		lock.lock();
+		try
+		{
+			long now = System.nanoTime();
+			int dropped = 0;
+			while (!items.isEmpty() && !fits(size, now))
+			{
+				removeFirst();
+				dropped++;
+			}
+			
+			return dropped;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Discard everything queued, refuse further offers, and release a waiting writer.
+	 */
+	void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			items.clear();
+			bytes = 0;
+			notEmpty.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Check whether a message of the given size can join the queue. Caller must hold the lock.
+	 */
+	private boolean fits(int size, long now)
+	{
+		// An empty queue takes anything, so a single large message can still be sent
+		if (items.isEmpty())
+			return true;
+		
+		if (items.size() >= maxMessages || bytes + size > maxBytes)
+			return false;
+		
+		// The oldest message has waited too long; the client is not keeping up
+		return now - items.peekFirst().queuedAt <= maxLagNanos;
+	}
+	
+	/**
+	 * Remove the oldest message. Caller must hold the lock.
+	 */
+	private E removeFirst()
+	{
+		Entry<E> entry = items.pollFirst();
+		if (entry == null)
+			return null;
+		
+		bytes -= entry.size;
+		return entry.item;
+	}
+	
+	/**
+	 * Remove as many of the oldest messages as fit in the batch. Caller must hold the lock.
+	 */
+	private int removeBatch(E[] batch, long maxBytes)
+	{
+		int count = 0;
+		long taken = 0;
+		while (count < batch.length && !items.isEmpty())
+		{
+			// The first message is always taken, however large, so it cannot block the queue
+			int size = items.peekFirst().size;
+			if (count > 0 && taken + size > maxBytes)
+				break;
+			
+			batch[count++] = removeFirst();
+			taken += size;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * A queued message with its size and the time it was queued.
+	 */
+	private static class Entry<E> {
+		
+		final E item;
+		final int size;
+		final long queuedAt;
+		
+		Entry(E item, int size)
+		{
+			this.item = item;
+			this.size = size;
+			queuedAt = System.nanoTime();
+		}
+	}
+}
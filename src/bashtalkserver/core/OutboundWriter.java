@@ -0,0 +1,251 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Writes batches from a client's outbound queue to its channel. The queue holds encoded messages, as byte arrays,
+ * and history as {@link MessageLog.Region}s. Runs of messages go out in one gathering write; regions are copied from
+ * the log file to the socket with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so history never
+ * passes through the heap.
+ * 
+ * Used from one thread at a time. With a non-blocking channel a write may stop part way; the rest of the batch is
+ * kept until the next {@link #write()}.
+ * 
+ * @version 1.0.0
+ */
+class OutboundWriter {
+	
+	private final SocketChannel channel;
+	private final OutboundQueue<Object> outbound;
+	
+	// Batch being written; items from start to end are not fully written yet. Messages have a buffer wrapping a byte
+	// array other clients may be writing too, regions have none
+	private final Object[] batch;
+	private final ByteBuffer[] buffers;
+	private int start;
+	private int end;
+	
+	// Log file of the region being transferred, and how far the transfer got
+	private FileChannel file;
+	private long filePosition;
+	
+	private int messages;
+	private int writes;
+	private long bytes;
+	
+	/**
+	 * Create a writer with no batch in progress.
+	 * 
+	 * @param channel
+	 *            - Client channel
+	 * @param outbound
+	 *            - Queue of messages and regions waiting to be written
+	 */
+	OutboundWriter(SocketChannel channel, OutboundQueue<Object> outbound)
+	{
+		this.channel = channel;
+		this.outbound = outbound;
+		batch = new Object[OutboundQueue.MAX_BATCH];
+		buffers = new ByteBuffer[OutboundQueue.MAX_BATCH];
+	}
+	
+	/**
+	 * Check whether the last batch has been fully written.
+	 * 
+	 * @return Whether a new batch can be taken
+	 */
+	boolean idle()
+	{
+		return start == end;
+	}
+	
+	/**
+	 * Take the next batch without waiting.
+	 * 
+	 * @param maxBytes
+	 *            - Most message bytes to take
+	 * @return Number of items taken
+	 */
+	int poll(long maxBytes)
+	{
+		return taken(outbound.pollBatch(batch, maxBytes));
+	}
+	
+	/**
+	 * Take the next batch, waiting for one to be queued.
+	 * 
+	 * @param maxBytes
+	 *            - Most message bytes to take
+	 * @param lingerNanos
+	 *            - Longest time to wait for the batch to fill
+	 * @return Number of items taken, or 0 once the queue is closed
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	int take(long maxBytes, long lingerNanos) throws InterruptedException
+	{
+		return taken(outbound.takeBatch(batch, maxBytes, lingerNanos));
+	}
+	
+	/**
+	 * Write as much of the batch as the channel accepts.
+	 * 
+	 * @return Whether the whole batch was written
+	 * @throws IOException
+	 *             If the channel cannot be written
+	 */
+	boolean write() throws IOException
+	{
+		while (start < end)
+		{
+			if (buffers[start] == null)
+			{
+				if (!transfer((MessageLog.Region) batch[start]))
+					return false;
+				
+				batch[start++] = null;
+				continue;
+			}
+			
+			// Every message up to the next region goes in one write
+			int run = start;
+			while (run < end && buffers[run] != null)
+				run++;
+			
+			bytes += channel.write(buffers, start, run - start);
+			writes++;
+			
+			while (start < run && !buffers[start].hasRemaining())
+			{
+				buffers[start] = null;
+				batch[start++] = null;
+			}
+			
+			// Socket buffer is full
+			if (start < run)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Count the messages taken since the counts were last reset. A region counts all the messages it holds.
+	 * 
+	 * @return Number of messages
+	 */
+	int messages()
+	{
+		return messages;
+	}
+	
+	/**
+	 * Count the writes since the counts were last reset.
+	 * 
+	 * @return Number of writes and transfers
+	 */
+	int writes()
+	{
+		return writes;
+	}
+	
+	/**
+	 * Count the bytes written since the counts were last reset.
+	 * 
+	 * @return Number of bytes written and transferred
+	 */
+	long bytes()
+	{
+		return bytes;
+	}
+	
+	void resetCounts()
+	{
+		messages = 0;
+		writes = 0;
+		bytes = 0;
+	}
+	
+	/**
+	 * Release the log file of an unfinished transfer.
+	 */
+	void close()
+	{
+		closeFile();
+	}
+	
+	/**
+	 * Prepare a batch just taken from the queue.
+	 */
+	private int taken(int count)
+	{
+		start = 0;
+		end = count;
+		for (int i = 0; i < count; i++)
+			if (batch[i] instanceof byte[])
+			{
+				buffers[i] = ByteBuffer.wrap((byte[]) batch[i]);
+				messages++;
+			}
+			else
+				messages += ((MessageLog.Region) batch[i]).messages();
+		
+		return count;
+	}
+	
+	/**
+	 * Copy as much of a region as the channel accepts straight from the log file.
+	 * 
+	 * @return Whether the region was fully sent
+	 */
+	private boolean transfer(MessageLog.Region region) throws IOException
+	{
+		if (file == null)
+			try
+			{
+				file = FileChannel.open(region.file, StandardOpenOption.READ);
+				filePosition = region.position;
+			}
+			catch (NoSuchFileException e)
+			{
+				// Deleted by retention while queued; the client misses that part of the history
+				return true;
+			}
+		
+		long limit = region.position + region.length;
+		while (filePosition < limit)
+		{
+			long sent = file.transferTo(filePosition, limit - filePosition, channel);
+			writes++;
+			
+			// Socket buffer is full
+			if (sent == 0)
+				return false;
+			
+			filePosition += sent;
+			bytes += sent;
+		}
+		
+		closeFile();
+		return true;
+	}
+	
+	private void closeFile()
+	{
+		if (file == null)
+			return;
+		
+		try
+		{
+			file.close();
+		}
+		catch (IOException e)
+		{
+			// Only read from, so nothing is lost
+		}
+		file = null;
+	}
+}
@@ -0,0 +1,196 @@
+package bashtalkserver.core;
+
+import java.util.*;
+
+/**
+ * Reusable view of the segments of a client message, formatted as:
+ * 
+ * [timestamp] &lt;sender&gt; /command argument1 ... argumentX message
+ * 
+ * The command and its arguments are optional. A message is scanned once, recording where each space-separated word
+ * starts and ends; segments are only copied out as strings when asked for. Words are split on single spaces, and
+ * trailing spaces are ignored.
+ * 
+ * One instance serves every line from a client, so it must not be shared between threads or kept across lines.
+ * 
+ * @version 1.0.0
+ */
+class ParsedMessage {
+	
+	static final String TOO_FEW_ARGUMENTS = "Too few arguments";
+	static final String NO_COMMAND_FOUND = "No command found";
+	
+	// Word positions of the fixed segments
+	private static final int TIMESTAMP = 0;
+	private static final int SENDER = 1;
+	private static final int COMMAND = 2;
+	
+	private String source;
+	
+	// Start and end of each word; grown as needed and reused between messages
+	private int[] starts;
+	private int[] ends;
+	private int words;
+	
+	private boolean hasCommand;
+	private int numberOfArgs;
+	private int messageStart;
+	private int messageEnd;
+	private String error;
+	
+	ParsedMessage()
+	{
+		starts = new int[16];
+		ends = new int[16];
+	}
+	
+	/**
+	 * Scan a message and expect no arguments.
+	 * 
+	 * @param msg
+	 *            - Message received from a client
+	 * @throws IllegalArgumentException
+	 *             If the message has no timestamp and sender
+	 */
+	void parse(String msg)
+	{
+		source = msg;
+		words = 0;
+		
+		// Trailing spaces never start a word
+		int end = msg.length();
+		while (end > 0 && msg.charAt(end - 1) == ' ')
+			end--;
+		
+		int start = 0;
+		for (int i = 0; i <= end && end > 0; i++)
+			if (i == end || msg.charAt(i) == ' ')
+			{
+				addWord(start, i);
+				start = i + 1;
+			}
+		
+		messageEnd = end;
+		
+		if (words <= SENDER || wordLength(SENDER) < 2)
+			throw new IllegalArgumentException("Malformed message: " + msg);
+		
+		hasCommand = words > COMMAND && wordLength(COMMAND) > 0 && msg.charAt(starts[COMMAND]) == '/';
+		expectArgs(0);
+	}
+	
+	/**
+	 * Split the words after the command into the given number of arguments followed by the message.
+	 * 
+	 * @param numberOfArgs
+	 *            - Number of arguments the command takes
+	 * @return Whether the message has a command with that many arguments; if not, {@link #error()} says why
+	 */
+	boolean expectArgs(int numberOfArgs)
+	{
+		this.numberOfArgs = numberOfArgs;
+		error = null;
+		
+		// The command counts as a word even when the message has none
+		if (numberOfArgs > 0 && words + 1 < COMMAND + 2 + numberOfArgs)
+			error = TOO_FEW_ARGUMENTS;
+		else if (numberOfArgs > 0 && !hasCommand)
+			error = NO_COMMAND_FOUND;
+		
+		if (error != null)
+			return false;
+		
+		// Without a command, the word where one would be starts the message
+		int firstWord = (hasCommand ? COMMAND + 1 : COMMAND) + numberOfArgs;
+		messageStart = firstWord < words ? starts[firstWord] : messageEnd;
+		return true;
+	}
+	
+	/**
+	 * Get the reason the last call to {@link #expectArgs(int)} failed.
+	 * 
+	 * @return {@link #TOO_FEW_ARGUMENTS}, {@link #NO_COMMAND_FOUND}, or null
+	 */
+	String error()
+	{
+		return error;
+	}
+	
+	String timestamp()
+	{
+		return word(TIMESTAMP);
+	}
+	
+	/**
+	 * Get the sender, without the surrounding &lt; and &gt;.
+	 * 
+	 * @return Username of sender
+	 */
+	String sender()
+	{
+		return source.substring(starts[SENDER] + 1, ends[SENDER] - 1);
+	}
+	
+	boolean hasCommand()
+	{
+		return hasCommand;
+	}
+	
+	/**
+	 * Get the command, including its leading '/'.
+	 * 
+	 * @return Command, or an empty string if there is none
+	 */
+	String command()
+	{
+		return hasCommand ? word(COMMAND) : "";
+	}
+	
+	/**
+	 * Get an argument of the command.
+	 * 
+	 * @param index
+	 *            - Index of the argument, starting at 0
+	 * @return Argument
+	 */
+	String arg(int index)
+	{
+		if (index < 0 || index >= numberOfArgs)
+			throw new IndexOutOfBoundsException("Argument " + index + " of " + numberOfArgs);
+		
+		return word(COMMAND + 1 + index);
+	}
+	
+	/**
+	 * Get the text after the command and its arguments.
+	 * 
+	 * @return Message text, possibly empty
+	 */
+	String message()
+	{
+		return source.substring(messageStart, messageEnd);
+	}
+	
+	private String word(int index)
+	{
+		return source.substring(starts[index], ends[index]);
+	}
+	
+	private int wordLength(int index)
+	{
+		return ends[index] - starts[index];
+	}
+	
+	private void addWord(int start, int end)
+	{
+		if (words == starts.length)
+		{
+			starts = Arrays.copyOf(starts, words * 2);
+			ends = Arrays.copyOf(ends, words * 2);
+		}
+		
+		starts[words] = start;
+		ends[words] = end;
+		words++;
+	}
+}
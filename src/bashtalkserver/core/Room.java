@@ -0,0 +1,126 @@
+package bashtalkserver.core;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import bashtalkserver.core.BashTalkServer.*;
+
+/**
+ * A named channel: the clients subscribed to it, its message history, and who is muted in it. Chat messages only go
+ * to a room's members, so sending one costs as much as the room is large rather than the whole server.
+ * 
+ * @version 1.0.0
+ */
+class Room {
+	
+	final String name;
+	
+	private final ClientRegistry members;
+	private final MessageRing history;
+	private final Set<String> muted;
+	
+	/**
+	 * Create an empty room.
+	 * 
+	 * @param name
+	 *            - Name of the room, including its leading '#'
+	 * @param history
+	 *            - History of the messages sent to the room
+	 */
+	Room(String name, MessageRing history)
+	{
+		this.name = name;
+		this.history = history;
+		members = new ClientRegistry();
+		muted = ConcurrentHashMap.newKeySet();
+	}
+	
+	/**
+	 * Subscribe a logged in client.
+	 * 
+	 * @param client
+	 *            - Client joining the room
+	 * @return Whether the client was not a member yet
+	 */
+	boolean add(Client client)
+	{
+		return members.reserve(client.getUsername(), client);
+	}
+	
+	/**
+	 * Unsubscribe a client.
+	 * 
+	 * @param client
+	 *            - Client leaving the room
+	 * @return Whether the client was a member
+	 */
+	boolean remove(Client client)
+	{
+		return members.remove(client);
+	}
+	
+	/**
+	 * Check whether a client is subscribed.
+	 * 
+	 * @param client
+	 *            - Client to look for
+	 * @return Whether the client is a member
+	 */
+	boolean contains(Client client)
+	{
+		return members.contains(client);
+	}
+	
+	/**
+	 * Count the members.
+	 * 
+	 * @return Number of subscribed clients
+	 */
+	int size()
+	{
+		return members.size();
+	}
+	
+	/**
+	 * Get the members, ordered by client number. The array is shared and must not be modified.
+	 * 
+	 * @return Snapshot of subscribed clients
+	 */
+	Client[] members()
+	{
+		return members.snapshot();
+	}
+	
+	MessageRing history()
+	{
+		return history;
+	}
+	
+	/**
+	 * Check whether a user may not send messages to this room.
+	 * 
+	 * @param username
+	 *            - Username to look up
+	 * @return Whether the user is muted here
+	 */
+	boolean isMuted(String username)
+	{
+		return muted.contains(username);
+	}
+	
+	/**
+	 * Mute or unmute a user in this room.
+	 * 
+	 * @param username
+	 *            - Username to mute or unmute
+	 * @param state
+	 *            - Mute status (true: muted / false: unmuted)
+	 */
+	void setMuted(String username, boolean state)
+	{
+		if (state)
+			muted.add(username);
+		else
+			muted.remove(username);
+	}
+}
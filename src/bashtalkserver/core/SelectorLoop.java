@@ -0,0 +1,240 @@
+package bashtalkserver.core;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Single-threaded event loop that services many non-blocking client channels with one
+ * {@link Selector}. Work from other threads is handed over with {@link #execute(Runnable)}, or
+ * {@link #schedule(Runnable, long)} to run it after a delay.
+ * 
+ * @version 1.0.0
+ */
+class SelectorLoop implements Runnable {
+	
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	
+	private final Selector selector;
+	private final Queue<Runnable> tasks;
+	private final ByteBuffer readBuffer;
+	
+	// Delayed tasks, soonest first; only touched on the loop thread
+	private final PriorityQueue<DelayedTask> delayed;
+	private Thread thread;
+	
+	/**
+	 * Open the selector for a new loop. The loop does not run until {@link #start(String)} is called.
+	 * 
+	 * @throws IOException
+	 *             If the selector cannot be opened
+	 */
+	SelectorLoop() throws IOException
+	{
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		delayed = new PriorityQueue<DelayedTask>();
+		
+		// One read buffer is shared by every channel on this loop, so idle clients cost no buffer space
+		readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Start the loop on its own thread.
+	 * 
+	 * @param name
+	 *            - Name of the loop thread
+	 */
+	void start(String name)
+	{
+		thread = new Thread(this, name);
+		thread.start();
+	}
+	
+	/**
+	 * Check whether the caller is running on this loop's thread.
+	 * 
+	 * @return Whether the current thread is the loop thread
+	 */
+	boolean inLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+	
+	/**
+	 * Run a task on the loop thread.
+	 * 
+	 * @param task
+	 *            - Task to run
+	 */
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+		
+		// The loop drains tasks after every select, so only a foreign thread needs to wake it
+		if (!inLoop())
+			selector.wakeup();
+	}
+	
+	/**
+	 * Run a task on the loop thread once a delay has passed.
+	 * 
+	 * @param task
+	 *            - Task to run
+	 * @param delayMillis
+	 *            - Milliseconds to wait first
+	 */
+	void schedule(final Runnable task, long delayMillis)
+	{
+		final long deadline = System.nanoTime() + delayMillis * 1000000L;
+		execute(new Runnable() {
+			
+			@Override
+			public void run()
+			{
+				delayed.add(new DelayedTask(deadline, task));
+			}
+		});
+	}
+	
+	/**
+	 * Count the tasks waiting to run on the loop thread. Not counted in constant time, so only for monitoring.
+	 * 
+	 * @return Number of queued tasks
+	 */
+	int pendingTasks()
+	{
+		return tasks.size();
+	}
+	
+	/**
+	 * Register a connected channel with this loop and start reading from it.
+	 * 
+	 * @param connection
+	 *            - Connection wrapping the channel
+	 */
+	void register(final ChannelConnection connection)
+	{
+		execute(new Runnable() {
+			
+			@Override
+			public void run()
+			{
+				try
+				{
+					SocketChannel channel = connection.channel();
+					channel.configureBlocking(false);
+					connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+					connection.opened();
+				}
+				catch (IOException e)
+				{
+					connection.close(e);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void run()
+	{
+		while (selector.isOpen())
+		{
+			try
+			{
+				// Tasks queued by the loop itself do not wake the selector, so never block while any are waiting
+				if (!tasks.isEmpty())
+					selector.selectNow();
+				else if (!delayed.isEmpty())
+					selector.select(Math.max(1, (delayed.peek().deadline - System.nanoTime()) / 1000000L));
+				else
+					selector.select();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				break;
+			}
+			
+			runTasks();
+			runDelayed();
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				
+				ChannelConnection connection = (ChannelConnection) key.attachment();
+				try
+				{
+					if (key.isValid() && key.isReadable())
+						connection.read(readBuffer);
+					if (key.isValid() && key.isWritable())
+						connection.flush();
+				}
+				catch (IOException | CancelledKeyException e)
+				{
+					connection.close(e instanceof IOException ? (IOException) e : null);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Run every task queued by {@link #execute(Runnable)}.
+	 */
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			try
+			{
+				task.run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+	}
+	
+	/**
+	 * Run every delayed task whose time has come.
+	 */
+	private void runDelayed()
+	{
+		long now = System.nanoTime();
+		while (!delayed.isEmpty() && delayed.peek().deadline - now <= 0)
+			try
+			{
+				delayed.poll().task.run();
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+	}
+	
+	/**
+	 * A task waiting for its deadline.
+	 */
+	private static class DelayedTask implements Comparable<DelayedTask> {
+		
+		final long deadline;
+		final Runnable task;
+		
+		DelayedTask(long deadline, Runnable task)
+		{
+			this.deadline = deadline;
+			this.task = task;
+		}
+		
+		@Override
+		public int compareTo(DelayedTask other)
+		{
+			return Long.signum(deadline - other.deadline);
+		}
+	}
+}
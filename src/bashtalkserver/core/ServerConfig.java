@@ -0,0 +1,289 @@
+package bashtalkserver.core;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Tunable settings for a BashTalkServer, filled in from the command line by
+ * {@link BashTalkServer#parseArgs(String[])}.
+ * 
+ * @version 1.0.0
+ */
+public class ServerConfig {
+	
+	/**
+	 * What to do with a client whose outbound queue is full.
+	 */
+	public enum SlowConsumerPolicy {
+		/** Drop new messages until the client catches up */
+		DROP,
+		/** Drop the oldest queued messages to make room for new ones */
+		COMPACT,
+		/** Disconnect the client */
+		DISCONNECT
+	}
+	
+	/**
+	 * How client connections are serviced.
+	 */
+	public enum IoMode {
+		/** One blocking handler thread per client */
+		BLOCKING,
+		/** One blocking handler per client, each on a virtual thread */
+		VIRTUAL,
+		/** A small fixed pool of selector loops shared by all clients */
+		NIO
+	}
+	
+	/** Environment variable holding the administrator password hash in daemon mode, if no file is given */
+	public static final String PASSWORD_HASH_ENV = "BASHTALK_PASSWORD_HASH";
+	
+	/** Environment variable holding the secret shared by the nodes of a cluster, if no file is given */
+	public static final String CLUSTER_SECRET_ENV = "BASHTALK_CLUSTER_SECRET";
+	
+	public static final String USAGE = "Valid options:" + "\n\t-t" + "\n\t--daemon" + "\n\t--password-hash-file=<path>" + "\n\t--external-ip=<address>|off" + "\n\t--port=<port>" + "\n\t--listen=[<address>:]<port>,..." + "\n\t--acceptors=<count>" + "\n\t--max-clients=<count>" + "\n\t--accept-backlog=<count>" + "\n\t--retry-after=<seconds>" + "\n\t--virtual-threads" + "\n\t--nio" + "\n\t--io-loops=<count>" + "\n\t--max-queued-messages=<count>" + "\n\t--max-queued-bytes=<bytes>" + "\n\t--max-lag=<milliseconds>" + "\n\t--slow-consumer=drop|compact|disconnect" + "\n\t--history=<messages>" + "\n\t--history-bytes=<bytes>" + "\n\t--max-replay=<messages>" + "\n\t--log-dir=<path>" + "\n\t--log-segment-bytes=<bytes>" + "\n\t--log-retention-hours=<hours>" + "\n\t--log-retention-bytes=<bytes>" + "\n\t--log-flush-ms=<milliseconds>" + "\n\t--coalesce-ms=<milliseconds>" + "\n\t--coalesce-bytes=<bytes>" + "\n\t--node=<name>" + "\n\t--cluster-port=<port>" + "\n\t--cluster-host=<address>" + "\n\t--cluster-secret-file=<path>" + "\n\t--peers=<host:port>,..." + "\n\t--chat-limit=<per second>:<burst>" + "\n\t--command-limit=[/command:]<per second>:<burst>" + "\n\t--heartbeat-ms=<milliseconds>" + "\n\t--heartbeat-timeout-ms=<milliseconds>" + "\n\t--idle-timeout-ms=<milliseconds>" + "\n\t--handshake-timeout-ms=<milliseconds>" + "\n\t--max-handshakes=<count>" + "\n\t--max-line-length=<bytes>";
+	
+	public int port = BashTalkServer.DEFAULT_PORT;
+	
+	// Addresses to listen on, each with its own acceptor threads; if empty, the port on every address
+	public List<InetSocketAddress> listen = new ArrayList<InetSocketAddress>();
+	public int acceptors = 1;
+	public boolean useTerminal = false;
+	public boolean daemon = false;
+	public String passwordHashFile = null;
+	public String externalIp = null;
+	public boolean lookUpExternalIp = true;
+	public IoMode ioMode = IoMode.BLOCKING;
+	public int ioLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+	public int maxQueuedMessages = 1024;
+	public long maxQueuedBytes = 1024 * 1024;
+	public long maxLagMillis = 30000;
+	public SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+	public int historySize = 100;
+	public long historyBytes = 1024 * 1024;
+	public int maxReplay = 1000;
+	public String logDir = null;
+	public long logSegmentBytes = 16 * 1024 * 1024;
+	public long logRetentionMillis = 7 * 24 * 60 * 60 * 1000L;
+	public long logRetentionBytes = 1024 * 1024 * 1024;
+	public long logFlushMillis = 20;
+	public long coalesceMillis = 0;
+	public int coalesceBytes = 64 * 1024;
+	public String nodeName = null;
+	public int clusterPort = 0;
+	public String clusterHost = "127.0.0.1";
+	public String clusterSecretFile = null;
+	public String peers = null;
+	
+	// Flood control: messages per second and burst for chat, for each command, and for particular commands. A rate
+	// of 0 turns the limit off
+	public double[] chatLimit = { 10, 20 };
+	public double[] commandLimit = { 5, 10 };
+	public Map<String, double[]> commandLimits = new HashMap<String, double[]>();
+	
+	// Heartbeats: how long a client may be silent before it is pinged, and how long it has to answer. Clients that
+	// send nothing but heartbeats for the idle timeout are disconnected too. 0 turns each off
+	public long heartbeatMillis = 30000;
+	public long heartbeatTimeoutMillis = 15000;
+	public long idleTimeoutMillis = 0;
+	
+	// Connections still logging in: how long they have to send a username, or to answer a password prompt later on,
+	// and how many may be logging in at once
+	public long handshakeTimeoutMillis = 30000;
+	public int maxHandshakes = 64;
+	
+	// Longest line a client may send, in encoded bytes not counting the line feed, whichever I/O model serves it
+	public int maxLineLength = 8192;
+	
+	// Admission: most clients logged in at once, connections the OS may queue before they are accepted, and how long a
+	// client turned away is asked to wait before trying again
+	public int maxClients = 50;
+	public int acceptBacklog = 128;
+	public int retryAfterSeconds = 10;
+	
+	/**
+	 * Apply a single command line option.
+	 * 
+	 * @param arg
+	 *            - Option in the form -t, --flag, or --name=value
+	 * @return Whether the option was recognized and valid
+	 */
+	public boolean apply(String arg)
+	{
+		if (arg.equals("-t"))
+		{
+			useTerminal = true;
+			return true;
+		}
+		
+		if (!arg.startsWith("--"))
+			return false;
+		
+		// Split --name=value into its parts
+		int split = arg.indexOf('=');
+		String name = split == -1 ? arg.substring(2) : arg.substring(2, split);
+		String value = split == -1 ? null : arg.substring(split + 1);
+		
+		try
+		{
+			switch (name)
+			{
+				case "port":
+					port = Integer.parseInt(value);
+					return port > 0 && port < 65536;
+				case "listen":
+					for (String address : value.split(","))
+					{
+						InetSocketAddress parsed = Listener.parseAddress(address.trim());
+						if (parsed == null)
+							return false;
+						listen.add(parsed);
+					}
+					return true;
+				case "acceptors":
+					acceptors = Integer.parseInt(value);
+					return acceptors > 0;
+				case "max-clients":
+					maxClients = Integer.parseInt(value);
+					return maxClients > 0;
+				case "accept-backlog":
+					acceptBacklog = Integer.parseInt(value);
+					return acceptBacklog > 0;
+				case "retry-after":
+					retryAfterSeconds = Integer.parseInt(value);
+					return retryAfterSeconds >= 0;
+				case "daemon":
+					daemon = true;
+					useTerminal = true;
+					return value == null;
+				case "password-hash-file":
+					passwordHashFile = value;
+					return value != null && value.length() > 0;
+				case "external-ip":
+					lookUpExternalIp = false;
+					externalIp = "off".equals(value) ? null : value;
+					return value != null && value.length() > 0;
+				case "virtual-threads":
+					ioMode = IoMode.VIRTUAL;
+					return value == null;
+				case "nio":
+					ioMode = IoMode.NIO;
+					return value == null;
+				case "io-loops":
+					ioLoops = Integer.parseInt(value);
+					return ioLoops > 0;
+				case "max-queued-messages":
+					maxQueuedMessages = Integer.parseInt(value);
+					return maxQueuedMessages > 0;
+				case "max-queued-bytes":
+					maxQueuedBytes = Long.parseLong(value);
+					return maxQueuedBytes > 0;
+				case "max-lag":
+					maxLagMillis = Long.parseLong(value);
+					return maxLagMillis > 0;
+				case "slow-consumer":
+					slowConsumerPolicy = SlowConsumerPolicy.valueOf(value.toUpperCase());
+					return true;
+				case "history":
+					historySize = Integer.parseInt(value);
+					return historySize > 0;
+				case "history-bytes":
+					historyBytes = Long.parseLong(value);
+					return historyBytes > 0;
+				case "max-replay":
+					maxReplay = Integer.parseInt(value);
+					return maxReplay > 0;
+				case "log-dir":
+					logDir = value;
+					return value != null && value.length() > 0;
+				case "log-segment-bytes":
+					logSegmentBytes = Long.parseLong(value);
+					return logSegmentBytes > 0;
+				case "log-retention-hours":
+					logRetentionMillis = Long.parseLong(value) * 60 * 60 * 1000;
+					return logRetentionMillis > 0;
+				case "log-retention-bytes":
+					logRetentionBytes = Long.parseLong(value);
+					return logRetentionBytes > 0;
+				case "log-flush-ms":
+					logFlushMillis = Long.parseLong(value);
+					return logFlushMillis >= 0;
+				case "coalesce-ms":
+					coalesceMillis = Long.parseLong(value);
+					return coalesceMillis >= 0;
+				case "coalesce-bytes":
+					coalesceBytes = Integer.parseInt(value);
+					return coalesceBytes > 0;
+				case "node":
+					nodeName = value;
+					return value != null && value.length() > 0;
+				case "cluster-port":
+					clusterPort = Integer.parseInt(value);
+					return clusterPort > 0 && clusterPort < 65536;
+				case "cluster-host":
+					clusterHost = value;
+					return value != null && value.length() > 0;
+				case "cluster-secret-file":
+					clusterSecretFile = value;
+					return value != null && value.length() > 0;
+				case "peers":
+					peers = value;
+					return !Cluster.parsePeers(value).isEmpty();
+				case "chat-limit":
+					chatLimit = TokenBucket.parseLimit(value);
+					return chatLimit != null;
+				case "command-limit":
+					return applyCommandLimit(value);
+				case "heartbeat-ms":
+					heartbeatMillis = Long.parseLong(value);
+					return heartbeatMillis >= 0;
+				case "heartbeat-timeout-ms":
+					heartbeatTimeoutMillis = Long.parseLong(value);
+					return heartbeatTimeoutMillis > 0;
+				case "idle-timeout-ms":
+					idleTimeoutMillis = Long.parseLong(value);
+					return idleTimeoutMillis >= 0;
+				case "handshake-timeout-ms":
+					handshakeTimeoutMillis = Long.parseLong(value);
+					return handshakeTimeoutMillis > 0;
+				case "max-handshakes":
+					maxHandshakes = Integer.parseInt(value);
+					return maxHandshakes > 0;
+				case "max-line-length":
+					maxLineLength = Integer.parseInt(value);
+					return maxLineLength > 0;
+				default:
+					return false;
+			}
+		}
+		catch (IllegalArgumentException | NullPointerException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Apply a command rate limit, either the default for every command or, with a leading /command:, the limit for
+	 * one command.
+	 * 
+	 * @param value
+	 *            - Limit in the form [/command:]&lt;per second&gt;:&lt;burst&gt;
+	 * @return Whether the limit was valid
+	 */
+	private boolean applyCommandLimit(String value)
+	{
+		if (!value.startsWith("/"))
+		{
+			commandLimit = TokenBucket.parseLimit(value);
+			return commandLimit != null;
+		}
+		
+		int split = value.indexOf(':');
+		double[] limit = split < 0 ? null : TokenBucket.parseLimit(value.substring(split + 1));
+		if (limit == null)
+			return false;
+		
+		commandLimits.put(value.substring(0, split), limit);
+		return true;
+	}
+}
@@ -0,0 +1,217 @@
+package bashtalkserver.core;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Hashed timer wheel for large numbers of coarse timeouts, such as one heartbeat check per client. Time is cut into
+ * ticks, and a timeout goes in the slot of the tick it is due in; a timeout due more than one turn of the wheel away
+ * waits out the extra turns in the same slot. Each tick only looks at the timeouts in one slot, so scheduling and
+ * cancelling cost O(1) and the work per tick does not grow with the number of timeouts that are not yet due.
+ * 
+ * Timeouts may be scheduled and cancelled from any thread. They run on the wheel's own thread, up to one tick late,
+ * so their tasks must be short and must not block.
+ * 
+ * @version 1.0.0
+ */
+class TimerWheel implements Runnable {
+	
+	private final long tickNanos;
+	private final Timeout[] slots;
+	private final int mask;
+	
+	// Timeouts scheduled since the last tick, moved into their slots by the wheel thread
+	private final Queue<Timeout> added;
+	private final AtomicInteger pending;
+	
+	// Only touched on the wheel thread
+	private long startNanos;
+	private long tick;
+	
+	/**
+	 * Create a wheel. It does not run until {@link #start(String)} is called; timeouts scheduled before then wait.
+	 * 
+	 * @param tickMillis
+	 *            - Length of one tick, and so how late a timeout may run
+	 * @param slotCount
+	 *            - Number of slots, rounded up to a power of two
+	 */
+	TimerWheel(long tickMillis, int slotCount)
+	{
+		int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+		tickNanos = tickMillis * 1000000L;
+		slots = new Timeout[size];
+		mask = size - 1;
+		added = new ConcurrentLinkedQueue<Timeout>();
+		pending = new AtomicInteger();
+	}
+	
+	/**
+	 * Start turning the wheel on a daemon thread of its own.
+	 * 
+	 * @param name
+	 *            - Name of the wheel thread
+	 */
+	void start(String name)
+	{
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Run a task once a delay has passed.
+	 * 
+	 * @param task
+	 *            - Task to run on the wheel thread
+	 * @param delayMillis
+	 *            - Milliseconds to wait first
+	 * @return Handle for cancelling the timeout
+	 */
+	Timeout schedule(Runnable task, long delayMillis)
+	{
+		Timeout timeout = new Timeout(task, System.nanoTime() + delayMillis * 1000000L);
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+	
+	/**
+	 * Count the timeouts that have neither run nor been cancelled.
+	 * 
+	 * @return Number of pending timeouts
+	 */
+	int size()
+	{
+		return pending.get();
+	}
+	
+	@Override
+	public void run()
+	{
+		startNanos = System.nanoTime();
+		tick = 0;
+		
+		while (true)
+		{
+			// Sleep until the end of the current tick
+			long wait;
+			while ((wait = startNanos + (tick + 1) * tickNanos - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+			
+			transferAdded();
+			expire((int) (tick & mask));
+			tick++;
+		}
+	}
+	
+	/**
+	 * Put newly scheduled timeouts in the slots of the ticks they are due in.
+	 */
+	private void transferAdded()
+	{
+		Timeout timeout;
+		while ((timeout = added.poll()) != null)
+		{
+			if (timeout.isDone())
+				continue;
+			
+			// Anything already overdue goes in the current tick
+			long due = Math.max(tick, (timeout.deadline - startNanos) / tickNanos);
+			timeout.rounds = (due - tick) / slots.length;
+			
+			int slot = (int) (due & mask);
+			timeout.next = slots[slot];
+			slots[slot] = timeout;
+		}
+	}
+	
+	/**
+	 * Run the timeouts of a slot that are due this turn, and drop the cancelled ones.
+	 */
+	private void expire(int slot)
+	{
+		Timeout timeout = slots[slot];
+		slots[slot] = null;
+		
+		while (timeout != null)
+		{
+			Timeout next = timeout.next;
+			timeout.next = null;
+			
+			if (timeout.isDone())
+			{
+				// Cancelled; let it go
+			}
+			else if (timeout.rounds > 0)
+			{
+				// Due on a later turn of the wheel
+				timeout.rounds--;
+				timeout.next = slots[slot];
+				slots[slot] = timeout;
+			}
+			else if (timeout.finish())
+				try
+				{
+					timeout.task.run();
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			
+			timeout = next;
+		}
+	}
+	
+	/**
+	 * A scheduled task, which can be cancelled until it runs.
+	 */
+	class Timeout {
+		
+		final Runnable task;
+		final long deadline;
+		private final AtomicBoolean done;
+		
+		// Wheel state, only touched on the wheel thread
+		private long rounds;
+		private Timeout next;
+		
+		private Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			done = new AtomicBoolean(false);
+		}
+		
+		/**
+		 * Keep the task from running, if it has not already. The timeout is dropped from the wheel when its slot next
+		 * comes up.
+		 */
+		void cancel()
+		{
+			finish();
+		}
+		
+		boolean isDone()
+		{
+			return done.get();
+		}
+		
+		/**
+		 * Mark the timeout as run or cancelled.
+		 * 
+		 * @return Whether this call was the first to do so
+		 */
+		private boolean finish()
+		{
+			if (!done.compareAndSet(false, true))
+				return false;
+			
+			pending.decrementAndGet();
+			return true;
+		}
+	}
+}
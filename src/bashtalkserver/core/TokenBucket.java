@@ -0,0 +1,89 @@
+package bashtalkserver.core;
+
+/**
+ * Rate limiter that allows bursts. The bucket holds up to a burst of tokens and refills at a steady rate; each
+ * message takes one token, and a message that finds the bucket empty is over the limit.
+ * 
+ * Not thread-safe. Each client's lines are handled one at a time, so a client's buckets are only touched by one
+ * thread at a time.
+ * 
+ * @version 1.0.0
+ */
+class TokenBucket {
+	
+	private final double tokensPerNano;
+	private final double burst;
+	private double tokens;
+	private long refilled;
+	
+	/**
+	 * Create a full bucket.
+	 * 
+	 * @param perSecond
+	 *            - Sustained messages per second
+	 * @param burst
+	 *            - Most messages allowed at once after a quiet spell
+	 */
+	TokenBucket(double perSecond, double burst)
+	{
+		this.tokensPerNano = perSecond / 1e9;
+		this.burst = Math.max(1, burst);
+		tokens = this.burst;
+		refilled = System.nanoTime();
+	}
+	
+	/**
+	 * Create a bucket for a limit given as messages per second and burst, unless the rate is 0.
+	 * 
+	 * @param limit
+	 *            - Rate and burst
+	 * @return Full bucket, or null if the limit is off
+	 */
+	static TokenBucket of(double[] limit)
+	{
+		return limit[0] > 0 ? new TokenBucket(limit[0], limit[1]) : null;
+	}
+	
+	/**
+	 * Parse a limit written as &lt;messages per second&gt;:&lt;burst&gt;.
+	 * 
+	 * @param value
+	 *            - Limit to parse
+	 * @return Rate and burst, or null if the limit is not valid
+	 */
+	static double[] parseLimit(String value)
+	{
+		String[] parts = value.split(":");
+		if (parts.length != 2)
+			return null;
+		
+		try
+		{
+			double rate = Double.parseDouble(parts[0]);
+			double burst = Double.parseDouble(parts[1]);
+			return rate >= 0 && burst >= 1 ? new double[] { rate, burst } : null;
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Take a token if one is available.
+	 * 
+	 * @return Whether the message is within the limit
+	 */
+	boolean tryTake()
+	{
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+		refilled = now;
+		
+		if (tokens < 1)
+			return false;
+		
+		tokens--;
+		return true;
+	}
+}